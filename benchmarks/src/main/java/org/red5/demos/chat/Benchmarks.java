@@ -0,0 +1,51 @@
+package org.red5.demos.chat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared helpers for the chat benchmarks.
+ */
+final class Benchmarks {
+
+    static final String JSON_MESSAGE = "{\"name\":\"chat\",\"method\":\"messageTransmit\",\"message\":{\"data\":\"hello from the benchmark\"}}";
+
+    static final String TEXT_MESSAGE = "hello from the benchmark";
+
+    // upper bound on waiting for delivery, so a lost message fails the run instead of hanging it
+    private static final long DELIVERY_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Spins until the delivered counter reaches the target.
+     * 
+     * @param delivered delivery counter
+     * @param target expected count
+     */
+    static void awaitDelivery(AtomicLong delivered, long target) {
+        long deadline = System.nanoTime() + DELIVERY_TIMEOUT;
+        while (delivered.get() < target) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Delivery timed out at " + delivered.get() + " of " + target);
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Creates a listener whose outbound queues and lag limit will not evict connections during a run; presence is off
+     * so only routed messages reach the stub connections.
+     * 
+     * @return listener
+     */
+    static WebSocketChatDataListener newListener() {
+        WebSocketChatDataListener listener = new WebSocketChatDataListener();
+        listener.setOutboundCapacity(1 << 16);
+        listener.setMaxLag(TimeUnit.MINUTES.toMillis(1));
+        listener.setPresenceWindow(0L);
+        return listener;
+    }
+
+}
@@ -0,0 +1,61 @@
+package org.red5.demos.chat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of {@link WebSocketChatDataListener#sendToAll(String, ChatFrame)}, measured until every member of the room
+ * has the message; sample mode reports the percentiles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutBenchmark {
+
+    private static final String PATH = "/chat/fanout";
+
+    @Param({ "10", "1000", "10000" })
+    private int members;
+
+    private WebSocketChatDataListener listener;
+
+    private final AtomicLong delivered = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        listener = Benchmarks.newListener();
+        for (int m = 0; m < members; m++) {
+            listener.onWSConnect(StubConnection.create(PATH, delivered));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        listener.stop();
+    }
+
+    @Benchmark
+    public void fanOut() {
+        long target = delivered.get() + members;
+        listener.sendToAll(PATH, ChatFrame.of(Benchmarks.JSON_MESSAGE));
+        Benchmarks.awaitDelivery(delivered, target);
+    }
+
+}
@@ -0,0 +1,66 @@
+package org.red5.demos.chat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.gson.JsonParser;
+
+/**
+ * Cost of the inbound parsing done by {@link WebSocketChatDataListener#onWSMessage} for JSON and plain text payloads;
+ * run with <code>-prof gc</code> and read <code>gc.alloc.rate.norm</code> for the allocation per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InboundBenchmark {
+
+    private IoBuffer json;
+
+    private IoBuffer text;
+
+    @Setup
+    public void setup() {
+        json = IoBuffer.wrap(Benchmarks.JSON_MESSAGE.getBytes(StandardCharsets.UTF_8));
+        text = IoBuffer.wrap(Benchmarks.TEXT_MESSAGE.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public void json(Blackhole bh) {
+        String msg = ChatCodec.decodeText(json);
+        bh.consume(ChatCodec.isJsonEnvelope(msg) && ChatCodec.isValidJsonObject(msg));
+        bh.consume(msg);
+    }
+
+    @Benchmark
+    public void text(Blackhole bh) {
+        String msg = ChatCodec.decodeText(text);
+        bh.consume(ChatCodec.isJsonEnvelope(msg));
+        bh.consume(msg);
+    }
+
+    /**
+     * The tree based parse and re-serialize the listener used to do, kept as a reference point.
+     */
+    @Benchmark
+    public void jsonTree(Blackhole bh) {
+        String msg = new String(json.array(), StandardCharsets.UTF_8).trim();
+        bh.consume(JsonParser.parseString(msg).getAsJsonObject().toString());
+    }
+
+}
@@ -0,0 +1,91 @@
+package org.red5.demos.chat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Messages per second through {@link Router#route(String, String)}, measured from routing until every member of the
+ * room has the message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RouterBenchmark {
+
+    // messages routed per invocation, spread over the rooms
+    private static final int MESSAGES = 1024;
+
+    @Param({ "1", "64" })
+    private int rooms;
+
+    @Param({ "10" })
+    private int members;
+
+    @Param({ "false", "true" })
+    private boolean batching;
+
+    private Router router;
+
+    private WebSocketChatDataListener listener;
+
+    private final AtomicLong delivered = new AtomicLong();
+
+    private String[] paths;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        router = new Router();
+        // block instead of dropping so every routed message is eventually delivered
+        router.setOverflowPolicy(OverflowPolicy.BLOCK);
+        router.setBlockTimeout(TimeUnit.SECONDS.toMillis(10));
+        router.setSseService(new StubSSEService());
+        // no application scope here, so room paths resolve to stub scopes for the SSE stage
+        router.setScopeResolver(StubScope::create);
+        listener = Benchmarks.newListener();
+        listener.setRouter(router);
+        paths = new String[rooms];
+        for (int r = 0; r < rooms; r++) {
+            paths[r] = "/chat/room" + r;
+            router.setBatching(paths[r], batching);
+            for (int m = 0; m < members; m++) {
+                listener.onWSConnect(StubConnection.create(paths[r], delivered));
+            }
+        }
+        router.start("bench");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        listener.stop();
+        router.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void route() {
+        long target = delivered.get() + (long) MESSAGES * members;
+        for (int i = 0; i < MESSAGES; i++) {
+            router.route(paths[i % rooms], Benchmarks.JSON_MESSAGE);
+        }
+        Benchmarks.awaitDelivery(delivered, target);
+    }
+
+}
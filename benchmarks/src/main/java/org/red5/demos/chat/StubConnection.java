@@ -0,0 +1,119 @@
+package org.red5.demos.chat;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.objenesis.ObjenesisStd;
+import org.red5.net.websocket.WebSocketConnection;
+
+import com.google.gson.stream.JsonReader;
+
+/**
+ * WebSocket connection stand-in that counts delivered messages instead of writing to a socket.
+ */
+public class StubConnection extends WebSocketConnection {
+
+    private static final ObjenesisStd objenesis = new ObjenesisStd(true);
+
+    private static final String BATCH_PREFIX = "{\"name\":\"chat\",\"method\":\"batch\"";
+
+    private String path;
+
+    private AtomicLong delivered;
+
+    // never invoked, instances are created through objenesis so no websocket session is needed
+    private StubConnection() {
+        super(null, null);
+    }
+
+    /**
+     * Creates a stub connection.
+     * 
+     * @param path connection path
+     * @param delivered counter incremented for every message delivered to this connection
+     * @return connection
+     */
+    public static StubConnection create(String path, AtomicLong delivered) {
+        StubConnection conn = objenesis.newInstance(StubConnection.class);
+        conn.path = path;
+        conn.delivered = delivered;
+        return conn;
+    }
+
+    @Override
+    public String getPath() {
+        return path;
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaders() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public String getProtocol() {
+        return "chat";
+    }
+
+    @Override
+    public void setProtocol(String protocol) {
+    }
+
+    @Override
+    public void send(String data) {
+        // batched frames carry several messages in a batch envelope
+        delivered.addAndGet(data.startsWith(BATCH_PREFIX) ? countMessages(data) : 1);
+    }
+
+    private static int countMessages(String data) {
+        int messages = 0;
+        try (JsonReader reader = new JsonReader(new StringReader(data))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("messages".equals(reader.nextName())) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        reader.skipValue();
+                        messages++;
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+        } catch (IOException e) {
+            // not thrown by a StringReader
+            throw new IllegalStateException(e);
+        }
+        return messages;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return this == obj;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(this);
+    }
+
+    @Override
+    public String toString() {
+        return "StubConnection [path=" + path + "]";
+    }
+
+}
@@ -0,0 +1,25 @@
+package org.red5.demos.chat;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.red5.server.api.scope.IScope;
+import org.red5.server.net.sse.SSEService;
+
+/**
+ * SSE service stand-in that counts broadcasts instead of writing to HTTP clients.
+ */
+public class StubSSEService extends SSEService {
+
+    private final LongAdder broadcasts = new LongAdder();
+
+    @Override
+    public int broadcastToScope(IScope scope, String message) {
+        broadcasts.increment();
+        return 1;
+    }
+
+    public long getBroadcasts() {
+        return broadcasts.sum();
+    }
+
+}
@@ -0,0 +1,40 @@
+package org.red5.demos.chat;
+
+import java.lang.reflect.Proxy;
+
+import org.red5.server.api.scope.IScope;
+
+/**
+ * Scope stand-in for the SSE stage, so frames reach the SSE service without an application scope tree.
+ */
+final class StubScope {
+
+    private StubScope() {
+    }
+
+    /**
+     * Creates a stub scope; only the name and context path answer, everything else returns null.
+     * 
+     * @param path context path
+     * @return scope
+     */
+    static IScope create(String path) {
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        return (IScope) Proxy.newProxyInstance(IScope.class.getClassLoader(), new Class<?>[] { IScope.class }, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getName":
+                    return name;
+                case "getContextPath":
+                case "toString":
+                    return path;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                default:
+                    return null;
+            }
+        });
+    }
+
+}
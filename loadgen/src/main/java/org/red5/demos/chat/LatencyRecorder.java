@@ -0,0 +1,91 @@
+package org.red5.demos.chat;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log-linear latency histogram in microseconds; every power of two is split into 16 linear buckets, so a percentile
+ * is reported within about 6% of the recorded value.
+ */
+final class LatencyRecorder {
+
+    private static final int SUB_BITS = 4;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private static final int BUCKETS = (Long.SIZE - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+    LatencyRecorder() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    void record(long micros) {
+        long value = Math.max(micros, 0L);
+        counts[index(value)].increment();
+        max.accumulate(value);
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long lowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = index % SUB_BUCKETS;
+        return (1L << exponent) + (sub << (exponent - SUB_BITS));
+    }
+
+    long count() {
+        long total = 0L;
+        for (LongAdder count : counts) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    /**
+     * Returns the latency at a percentile, as the upper bound of the bucket holding it.
+     *
+     * @param percentile between 0 and 100
+     * @return latency in microseconds, zero when nothing was recorded
+     */
+    long percentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts[i].sum();
+            total += snapshot[i];
+        }
+        if (total == 0L) {
+            return 0L;
+        }
+        long target = Math.max(1L, (long) Math.ceil(total * percentile / 100d));
+        long seen = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= target) {
+                return i + 1 < BUCKETS ? Math.min(lowerBound(i + 1) - 1L, getMax()) : getMax();
+            }
+        }
+        return getMax();
+    }
+
+    long getMax() {
+        return max.get();
+    }
+
+}
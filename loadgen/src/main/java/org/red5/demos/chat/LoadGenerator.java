@@ -0,0 +1,210 @@
+package org.red5.demos.chat;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load generator for the chat application. It opens WebSocket and SSE clients spread over a number of rooms,
+ * has some of the WebSocket clients publish at a fixed rate, and reports end-to-end latency, deliveries and loss.
+ * Publishers and subscribers run in the same JVM, so latency is measured with a single clock.
+ * <p>
+ * Options are given as {@code name=value} arguments, see {@link #usage()}.
+ */
+public final class LoadGenerator {
+
+    // seconds between progress lines
+    private static final long REPORT_INTERVAL = 5L;
+
+    private final Map<String, String> options;
+
+    private final int rooms;
+
+    private final LoadStats stats;
+
+    private final List<WsClient> wsClients = new ArrayList<>();
+
+    private final List<SseClient> sseClients = new ArrayList<>();
+
+    private final HttpClient[] httpClients;
+
+    private LoadGenerator(Map<String, String> options) {
+        this.options = options;
+        this.rooms = intOption("rooms");
+        this.stats = new LoadStats(Integer.toHexString(ThreadLocalRandom.current().nextInt()), rooms);
+        // the clients are spread over a few HTTP clients so a single selector thread does not limit a large run
+        httpClients = new HttpClient[Math.max(1, Runtime.getRuntime().availableProcessors() / 2)];
+        for (int i = 0; i < httpClients.length; i++) {
+            httpClients[i] = HttpClient.newBuilder().executor(Executors.newVirtualThreadPerTaskExecutor()).connectTimeout(Duration.ofSeconds(10)).build();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = defaults();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            String name = eq > 0 ? arg.substring(arg.startsWith("--") ? 2 : 0, eq) : "";
+            if (!options.containsKey(name)) {
+                usage();
+                System.exit(1);
+            }
+            options.put(name, arg.substring(eq + 1));
+        }
+        new LoadGenerator(options).run();
+    }
+
+    private static Map<String, String> defaults() {
+        Map<String, String> options = new HashMap<>();
+        options.put("wsUrl", "ws://localhost:5080/chat/{room}");
+        options.put("sseUrl", "http://localhost:5080/chat/events/{room}");
+        options.put("rooms", "10");
+        options.put("wsClients", "1000");
+        options.put("sseClients", "0");
+        options.put("publishers", "10");
+        options.put("rate", "5");
+        options.put("json", "true");
+        options.put("connectRate", "500");
+        options.put("duration", "30");
+        options.put("drain", "5");
+        return options;
+    }
+
+    private static void usage() {
+        System.err.println("Usage: java -jar loadgen.jar [name=value ...]");
+        System.err.println("  wsUrl        WebSocket URL, {room} is replaced by the room name (ws://localhost:5080/chat/{room})");
+        System.err.println("  sseUrl       SSE URL, {room} is replaced by the room name (http://localhost:5080/chat/events/{room})");
+        System.err.println("  rooms        number of rooms, named room0, room1, ... (10)");
+        System.err.println("  wsClients    WebSocket clients, spread evenly over the rooms (1000)");
+        System.err.println("  sseClients   SSE clients, spread evenly over the rooms (0)");
+        System.err.println("  publishers   WebSocket clients that also publish, at most wsClients (10)");
+        System.err.println("  rate         messages per second per publisher (5)");
+        System.err.println("  json         wrap messages in the JSON chat envelope (true)");
+        System.err.println("  connectRate  connections opened per second (500)");
+        System.err.println("  duration     seconds of publishing (30)");
+        System.err.println("  drain        seconds to wait for deliveries once publishing stops (5)");
+    }
+
+    private int intOption(String name) {
+        return Integer.parseInt(options.get(name));
+    }
+
+    private URI uri(String option, int room) {
+        return URI.create(options.get(option).replace("{room}", "room" + room));
+    }
+
+    private void run() throws InterruptedException {
+        int wsCount = intOption("wsClients");
+        int sseCount = intOption("sseClients");
+        int publishers = Math.min(intOption("publishers"), wsCount);
+        System.out.printf("Connecting %d WebSocket and %d SSE clients over %d rooms%n", wsCount, sseCount, rooms);
+        connect(wsCount, sseCount);
+        System.out.printf("Connected, failures: %d%n", stats.getConnectFailures());
+        long duration = TimeUnit.SECONDS.toNanos(intOption("duration"));
+        long end = System.nanoTime() + duration;
+        List<Thread> threads = new ArrayList<>();
+        for (WsClient publisher : wsClients) {
+            if (threads.size() == publishers) {
+                break;
+            }
+            if (publisher.isConnected()) {
+                threads.add(Thread.ofVirtual().name("publisher-" + threads.size()).start(() -> publish(publisher, end)));
+            }
+        }
+        long start = System.nanoTime();
+        while (System.nanoTime() < end) {
+            TimeUnit.SECONDS.sleep(Math.min(REPORT_INTERVAL, Math.max(1L, TimeUnit.NANOSECONDS.toSeconds(end - System.nanoTime()))));
+            progress(start);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        TimeUnit.SECONDS.sleep(intOption("drain"));
+        report(TimeUnit.NANOSECONDS.toMillis(duration));
+        wsClients.forEach(WsClient::close);
+        sseClients.forEach(SseClient::close);
+    }
+
+    /**
+     * Opens the clients at the connect rate and waits for all of them; each connected client counts as a subscriber of
+     * its room.
+     */
+    private void connect(int wsCount, int sseCount) {
+        long interval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, intOption("connectRate"));
+        long next = System.nanoTime();
+        List<CompletableFuture<?>> pending = new ArrayList<>();
+        for (int i = 0; i < wsCount + sseCount; i++) {
+            int room = i % rooms;
+            HttpClient client = httpClients[i % httpClients.length];
+            CompletableFuture<?> connected;
+            if (i < wsCount) {
+                // kept in creation order so the publishers are spread over the rooms
+                WsClient ws = new WsClient(stats, room);
+                wsClients.add(ws);
+                connected = ws.connect(client, uri("wsUrl", room));
+            } else {
+                SseClient sse = new SseClient(stats, room);
+                sseClients.add(sse);
+                connected = sse.connect(client, uri("sseUrl", room));
+            }
+            pending.add(connected.handle((result, error) -> {
+                if (error != null) {
+                    stats.connectFailure();
+                } else {
+                    stats.subscribed(room);
+                }
+                return null;
+            }));
+            next += interval;
+            LockSupport.parkNanos(next - System.nanoTime());
+        }
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    private void publish(WsClient publisher, long end) {
+        boolean json = Boolean.parseBoolean(options.get("json"));
+        long interval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, intOption("rate"));
+        long next = System.nanoTime();
+        long sequence = 0L;
+        while (next < end) {
+            try {
+                publisher.send(stats.message(publisher.getRoom(), ++sequence, json));
+                stats.published(publisher.getRoom());
+            } catch (Exception e) {
+                stats.sendFailure();
+            }
+            next += interval;
+            LockSupport.parkNanos(next - System.nanoTime());
+        }
+    }
+
+    private void progress(long start) {
+        LatencyRecorder latency = stats.getLatency();
+        System.out.printf("%4ds published: %d delivered: %d p50: %.2f ms p99: %.2f ms%n", TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), stats.getPublished(), stats.getDelivered(), latency.percentile(50d) / 1000d, latency.percentile(99d) / 1000d);
+    }
+
+    private void report(long durationMillis) {
+        LatencyRecorder latency = stats.getLatency();
+        long expected = stats.getExpected();
+        long delivered = stats.getDelivered();
+        long lost = Math.max(0L, expected - delivered);
+        System.out.println();
+        System.out.printf("Published:        %d (%.1f/s)%n", stats.getPublished(), stats.getPublished() * 1000d / durationMillis);
+        System.out.printf("Expected:         %d%n", expected);
+        System.out.printf("Delivered:        %d (%.1f/s)%n", delivered, delivered * 1000d / durationMillis);
+        System.out.printf("Lost:             %d (%.3f%%)%n", lost, expected > 0L ? lost * 100d / expected : 0d);
+        System.out.printf("Send failures:    %d%n", stats.getSendFailures());
+        System.out.printf("Connect failures: %d%n", stats.getConnectFailures());
+        System.out.printf("Disconnects:      %d%n", stats.getDisconnects());
+        System.out.printf("Latency ms p50: %.2f p90: %.2f p99: %.2f p99.9: %.2f max: %.2f%n", latency.percentile(50d) / 1000d, latency.percentile(90d) / 1000d, latency.percentile(99d) / 1000d, latency.percentile(99.9d) / 1000d, latency.getMax() / 1000d);
+    }
+
+}
@@ -0,0 +1,137 @@
+package org.red5.demos.chat;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters shared by all clients of a run. Published messages carry a marker holding the run id, the room, the sequence
+ * and the publish time, so receivers can measure latency and ignore traffic from other runs or other clients.
+ */
+final class LoadStats {
+
+    private final String marker;
+
+    // messages published per room
+    private final AtomicLongArray published;
+
+    // connected subscribers per room, WebSocket and SSE alike
+    private final AtomicLongArray subscribers;
+
+    private final LongAdder delivered = new LongAdder();
+
+    private final LongAdder sendFailures = new LongAdder();
+
+    private final LongAdder connectFailures = new LongAdder();
+
+    private final LongAdder disconnects = new LongAdder();
+
+    private final LatencyRecorder latency = new LatencyRecorder();
+
+    LoadStats(String runId, int rooms) {
+        this.marker = "lg:" + runId + ":";
+        this.published = new AtomicLongArray(rooms);
+        this.subscribers = new AtomicLongArray(rooms);
+    }
+
+    /**
+     * Creates the text of a published message.
+     *
+     * @param room room index
+     * @param sequence publisher sequence
+     * @param json true to wrap the marker in the JSON chat envelope used by the web client
+     * @return message text
+     */
+    String message(int room, long sequence, boolean json) {
+        String data = marker + room + ':' + sequence + ':' + System.nanoTime();
+        return json ? "{\"name\":\"chat\",\"method\":\"messageTransmit\",\"message\":{\"data\":\"" + data + "\"}}" : data;
+    }
+
+    /**
+     * Records every message of this run found in a received frame or event; batched frames hold several messages in a
+     * batch envelope.
+     *
+     * @param text received text
+     */
+    void receive(CharSequence text) {
+        long now = System.nanoTime();
+        String frame = text.toString();
+        int from = 0;
+        while ((from = frame.indexOf(marker, from)) >= 0) {
+            from += marker.length();
+            // room and sequence are skipped, the publish time follows the second colon
+            int time = frame.indexOf(':', frame.indexOf(':', from) + 1) + 1;
+            long sent = 0L;
+            int i = time;
+            while (i < frame.length() && Character.isDigit(frame.charAt(i))) {
+                sent = sent * 10L + (frame.charAt(i++) - '0');
+            }
+            if (time > 0 && i > time) {
+                delivered.increment();
+                latency.record((now - sent) / 1000L);
+            }
+            from = i;
+        }
+    }
+
+    void published(int room) {
+        published.incrementAndGet(room);
+    }
+
+    void subscribed(int room) {
+        subscribers.incrementAndGet(room);
+    }
+
+    void sendFailure() {
+        sendFailures.increment();
+    }
+
+    void connectFailure() {
+        connectFailures.increment();
+    }
+
+    void disconnect() {
+        disconnects.increment();
+    }
+
+    long getPublished() {
+        long total = 0L;
+        for (int i = 0; i < published.length(); i++) {
+            total += published.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Returns how many deliveries the published messages should have produced, one per subscriber of their room.
+     *
+     * @return expected deliveries
+     */
+    long getExpected() {
+        long total = 0L;
+        for (int i = 0; i < published.length(); i++) {
+            total += published.get(i) * subscribers.get(i);
+        }
+        return total;
+    }
+
+    long getDelivered() {
+        return delivered.sum();
+    }
+
+    long getSendFailures() {
+        return sendFailures.sum();
+    }
+
+    long getConnectFailures() {
+        return connectFailures.sum();
+    }
+
+    long getDisconnects() {
+        return disconnects.sum();
+    }
+
+    LatencyRecorder getLatency() {
+        return latency;
+    }
+
+}
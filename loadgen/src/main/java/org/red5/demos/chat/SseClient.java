@@ -0,0 +1,91 @@
+package org.red5.demos.chat;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+/**
+ * SSE client reading the event stream line by line on a virtual thread; the data of each event is handed to the run
+ * statistics.
+ */
+final class SseClient {
+
+    private final LoadStats stats;
+
+    private final int room;
+
+    private volatile Stream<String> body;
+
+    private volatile boolean closing;
+
+    SseClient(LoadStats stats, int room) {
+        this.stats = stats;
+        this.room = room;
+    }
+
+    /**
+     * Opens the event stream.
+     *
+     * @param client HTTP client
+     * @param uri event stream URL
+     * @return completes once the response headers arrive, exceptionally if the stream could not be opened
+     */
+    CompletableFuture<Void> connect(HttpClient client, URI uri) {
+        CompletableFuture<Void> connected = new CompletableFuture<>();
+        HttpRequest request = HttpRequest.newBuilder(uri).header("Accept", "text/event-stream").GET().build();
+        Thread.ofVirtual().name("sse-client").start(() -> {
+            try {
+                HttpResponse<Stream<String>> response = client.send(request, HttpResponse.BodyHandlers.ofLines());
+                if (response.statusCode() != 200) {
+                    response.body().close();
+                    throw new IllegalStateException("SSE status " + response.statusCode());
+                }
+                body = response.body();
+                connected.complete(null);
+                read(response.body());
+            } catch (Exception e) {
+                if (!connected.completeExceptionally(e) && !closing) {
+                    stats.disconnect();
+                }
+            }
+        });
+        return connected;
+    }
+
+    private void read(Stream<String> lines) {
+        StringBuilder data = new StringBuilder();
+        lines.forEach(line -> {
+            if (line.isEmpty()) {
+                // a blank line ends the event
+                if (data.length() > 0) {
+                    stats.receive(data);
+                    data.setLength(0);
+                }
+            } else if (line.startsWith("data:")) {
+                if (data.length() > 0) {
+                    data.append('\n');
+                }
+                data.append(line, line.startsWith("data: ") ? 6 : 5, line.length());
+            }
+        });
+        if (!closing) {
+            stats.disconnect();
+        }
+    }
+
+    int getRoom() {
+        return room;
+    }
+
+    void close() {
+        closing = true;
+        Stream<String> lines = body;
+        if (lines != null) {
+            lines.close();
+        }
+    }
+
+}
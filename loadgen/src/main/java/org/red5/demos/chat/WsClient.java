@@ -0,0 +1,92 @@
+package org.red5.demos.chat;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * WebSocket chat client using the chat subprotocol; every received text frame is handed to the run statistics.
+ */
+final class WsClient implements WebSocket.Listener {
+
+    private final LoadStats stats;
+
+    private final int room;
+
+    // text frames may arrive in parts
+    private final StringBuilder partial = new StringBuilder();
+
+    private volatile WebSocket socket;
+
+    private volatile boolean closing;
+
+    WsClient(LoadStats stats, int room) {
+        this.stats = stats;
+        this.room = room;
+    }
+
+    CompletableFuture<WebSocket> connect(HttpClient client, URI uri) {
+        return client.newWebSocketBuilder().subprotocols("chat").buildAsync(uri, this).thenApply(ws -> socket = ws);
+    }
+
+    boolean isConnected() {
+        return socket != null;
+    }
+
+    int getRoom() {
+        return room;
+    }
+
+    /**
+     * Sends a text frame and waits for it to be written; a client must not have two sends in flight.
+     *
+     * @param text message
+     */
+    void send(String text) {
+        socket.sendText(text, true).join();
+    }
+
+    void close() {
+        closing = true;
+        WebSocket ws = socket;
+        if (ws != null) {
+            ws.sendClose(WebSocket.NORMAL_CLOSURE, "").exceptionally(e -> null);
+        }
+    }
+
+    @Override
+    public CompletionStage<?> onText(WebSocket ws, CharSequence data, boolean last) {
+        partial.append(data);
+        if (last) {
+            stats.receive(partial);
+            partial.setLength(0);
+        }
+        ws.request(1);
+        return null;
+    }
+
+    @Override
+    public CompletionStage<?> onBinary(WebSocket ws, ByteBuffer data, boolean last) {
+        ws.request(1);
+        return null;
+    }
+
+    @Override
+    public CompletionStage<?> onClose(WebSocket ws, int statusCode, String reason) {
+        if (!closing) {
+            stats.disconnect();
+        }
+        return null;
+    }
+
+    @Override
+    public void onError(WebSocket ws, Throwable error) {
+        if (!closing) {
+            stats.disconnect();
+        }
+    }
+
+}
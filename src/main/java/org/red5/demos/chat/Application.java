@@ -1,5 +1,7 @@
 package org.red5.demos.chat;
 
+import java.util.concurrent.TimeUnit;
+
 import org.red5.net.websocket.WebSocketPlugin;
 import org.red5.net.websocket.WebSocketScopeManager;
 import org.red5.server.adapter.MultiThreadedApplicationAdapter;
@@ -23,9 +25,21 @@ public class Application extends MultiThreadedApplicationAdapter implements Appl
     //private static Logger log = Red5LoggerFactory.getLogger(Application.class, "chat");
     private static Logger log = LoggerFactory.getLogger(Application.class); // use this for now instead
 
-    @SuppressWarnings("unused")
+    // first and maximum delay between startup attempts while the WebSocket plugin is not yet available, in ms
+    private static final long RETRY_INITIAL = 10L, RETRY_MAX = 500L;
+
     private ApplicationContext applicationContext;
 
+    private final ChatReadiness readiness = new ChatReadiness();
+
+    // the single router / listener graph for the application, built on the first attempt
+    private Router router;
+
+    private WebSocketChatDataListener chatListener;
+
+    // true once the listener is attached to the WebSocket scope
+    private boolean attached;
+
     private Thread startupThread;
 
     @Override
@@ -40,59 +54,120 @@ public class Application extends MultiThreadedApplicationAdapter implements Appl
             log.warn("Startup thread is already running, skipping appStart");
             return false;
         }
-        final Application app = this;
-        startupThread = Thread.ofVirtual().start(new Runnable() {
-            @Override
-            public void run() {
-                String path = scope.getContextPath();
+        readiness.starting(scope.getName());
+        // plugins are normally ready already when the app is (re)deployed, so try right away and only fall back to
+        // retrying in the background during server boot
+        if (!initialize(scope)) {
+            startupThread = Thread.ofVirtual().name("chat-startup-" + scope.getName()).start(() -> {
+                long delay = RETRY_INITIAL;
                 try {
-                    while (!Red5.isPluginsReady()) {
-                        log.info("Waiting for plugins to be ready...");
-                        Thread.sleep(1000L);
+                    while (!initialize(scope)) {
+                        TimeUnit.MILLISECONDS.sleep(delay);
+                        delay = Math.min(delay * 2, RETRY_MAX);
                     }
-                    log.info("Plugins are ready, proceeding with chat application startup");
-                    do {
-                        WebSocketPlugin webSocketPlugin = (WebSocketPlugin) PluginRegistry.getPlugin(WebSocketPlugin.NAME);
-                        if (webSocketPlugin == null) {
-                            log.warn("WebSocketPlugin is null, cannot start chat application");
-                            Thread.sleep(100L);
-                            continue;
-                        }
-                        WebSocketScopeManager webSocketScopeManager = webSocketPlugin.getManager(path);
-                        if (webSocketScopeManager == null) {
-                            log.warn("WebSocketScopeManager is null, cannot start chat application");
-                            Thread.sleep(100L);
-                            continue;
-                        }
-                        // Initialize the router
-                        Router router = new Router();
-                        router.setApp(app);
-                        scope.setAttribute("router", router);
-                        log.info("Router set in scope: {}", scope.getName());
-                        // Register the WebSocketChatDataListener
-                        WebSocketChatDataListener chatListener = new WebSocketChatDataListener();
-                        chatListener.setRouter(router);
-                        scope.setAttribute("chatListener", chatListener);
-                        log.info("Chat listener set in scope: {}", scope.getName());
-                        // Start the WebSocketChatDataListener
-                        webSocketScopeManager.addListener(chatListener, path);
-                        log.info("WebSocketChatDataListener added to WebSocket scope: {}", path);
-                        break; // exit the loop if everything is set up correctly
-                    } while(true);
-                } catch (Exception e) {
-                    log.error("Error occurred while starting chat application", e);
+                } catch (InterruptedException e) {
+                    log.debug("Chat startup interrupted");
                 }
-            }
-        });
+            });
+        }
         return super.appStart(scope);
     }
 
+    /**
+     * Attaches the chat listener to the WebSocket scope of the application, building the router and listener the first
+     * time through.
+     * 
+     * @param scope application scope
+     * @return true when the application is ready to route or startup failed for good, false to try again
+     */
+    private synchronized boolean initialize(IScope scope) {
+        // attached already, or appStop interrupted the startup thread
+        if (attached || Thread.currentThread().isInterrupted()) {
+            return true;
+        }
+        readiness.attempted();
+        try {
+            if (!Red5.isPluginsReady()) {
+                log.debug("Waiting for plugins to be ready");
+                return false;
+            }
+            String path = scope.getContextPath();
+            WebSocketPlugin webSocketPlugin = (WebSocketPlugin) PluginRegistry.getPlugin(WebSocketPlugin.NAME);
+            if (webSocketPlugin == null) {
+                log.debug("WebSocketPlugin is not available yet");
+                return false;
+            }
+            WebSocketScopeManager webSocketScopeManager = webSocketPlugin.getManager(path);
+            if (webSocketScopeManager == null) {
+                log.debug("WebSocketScopeManager is not available yet for: {}", path);
+                return false;
+            }
+            if (router == null) {
+                // use the router configured in red5-web.xml so only one routing engine runs, fall back to a default one
+                if (applicationContext != null && applicationContext.containsBean("router")) {
+                    router = applicationContext.getBean("router", Router.class);
+                } else {
+                    router = new Router();
+                    router.setApp(this);
+                }
+                scope.setAttribute("router", router);
+                log.info("Router set in scope: {}", scope.getName());
+            }
+            if (chatListener == null) {
+                // again preferring the configured bean, which is already wired to the router
+                if (applicationContext != null && applicationContext.containsBean("chatListener")) {
+                    chatListener = applicationContext.getBean("chatListener", WebSocketChatDataListener.class);
+                } else {
+                    chatListener = new WebSocketChatDataListener();
+                    chatListener.setRouter(router);
+                }
+                scope.setAttribute("chatListener", chatListener);
+                log.info("Chat listener set in scope: {}", scope.getName());
+            }
+            if (!router.isRunning()) {
+                // appStop shut the router and listener down, start them again for this run
+                chatListener.start();
+                SharedObjectRouter sharedObjectRouter = router.getSharedObjectRouter();
+                if (sharedObjectRouter != null) {
+                    sharedObjectRouter.start();
+                }
+                router.start(scope.getName());
+                log.info("Router restarted for: {}", scope.getName());
+            }
+            webSocketScopeManager.addListener(chatListener, path);
+            log.info("WebSocketChatDataListener added to WebSocket scope: {}", path);
+            attached = true;
+            readiness.ready(router);
+        } catch (Exception e) {
+            log.error("Error occurred while starting chat application", e);
+            readiness.failed();
+        }
+        return true;
+    }
+
     @Override
     public void appStop(IScope scope) {
         log.info("Chat stopping");
+        synchronized (this) {
+            if (startupThread != null) {
+                startupThread.interrupt();
+                startupThread = null;
+            }
+            attached = false;
+            readiness.stopped();
+        }
         super.appStop(scope);
     }
 
+    /**
+     * Returns the startup state of the application.
+     * 
+     * @return readiness
+     */
+    public ChatReadinessMXBean getReadiness() {
+        return readiness;
+    }
+
     public void messageTransmit(String message) {
         log.info("Message transmitted: {}", message);
     }
@@ -0,0 +1,154 @@
+package org.red5.demos.chat;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary chat envelope, used on connections that negotiate the {@value #PROTOCOL} subprotocol. A frame is a
+ * version byte followed by the room, sender id, sequence and payload; numbers are unsigned LEB128 varints and the room
+ * and payload are UTF-8 bytes prefixed with their varint length. An empty room means the path of the connection.
+ */
+final class BinaryEnvelope {
+
+    // subprotocol offered by clients that send and receive binary envelopes
+    static final String PROTOCOL = "chat.binary";
+
+    static final byte VERSION = 1;
+
+    private final String room;
+
+    private final long sender;
+
+    private final long sequence;
+
+    private final String payload;
+
+    BinaryEnvelope(String room, long sender, long sequence, String payload) {
+        this.room = room;
+        this.sender = sender;
+        this.sequence = sequence;
+        this.payload = payload;
+    }
+
+    String getRoom() {
+        return room;
+    }
+
+    long getSender() {
+        return sender;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    String getPayload() {
+        return payload;
+    }
+
+    /**
+     * Returns whether the envelope may be routed on a connection path; clients only post to their own room.
+     *
+     * @param path connection path
+     * @return true if the room is empty or matches the path
+     */
+    boolean isFor(String path) {
+        return room.isEmpty() || room.equals(path);
+    }
+
+    /**
+     * Encodes an envelope.
+     *
+     * @param room room path, may be empty
+     * @param sender sender id
+     * @param sequence sequence number
+     * @param payload UTF-8 payload bytes, read from position to limit without being consumed
+     * @return frame bytes
+     */
+    static byte[] encode(String room, long sender, long sequence, ByteBuffer payload) {
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        int length = payload.remaining();
+        ByteBuffer buf = ByteBuffer.allocate(1 + varintSize(roomBytes.length) + roomBytes.length + varintSize(sender) + varintSize(sequence) + varintSize(length) + length);
+        buf.put(VERSION);
+        putVarint(buf, roomBytes.length);
+        buf.put(roomBytes);
+        putVarint(buf, sender);
+        putVarint(buf, sequence);
+        putVarint(buf, length);
+        buf.put(payload.duplicate());
+        return buf.array();
+    }
+
+    /**
+     * Decodes an envelope from the readable part of a buffer without consuming it.
+     *
+     * @param buf inbound payload
+     * @return envelope, or null if the frame is malformed
+     */
+    static BinaryEnvelope decode(ByteBuffer buf) {
+        ByteBuffer in = buf.duplicate();
+        try {
+            if (in.get() != VERSION) {
+                return null;
+            }
+            String room = getString(in);
+            long sender = getVarint(in);
+            long sequence = getVarint(in);
+            String payload = getString(in);
+            return in.hasRemaining() ? null : new BinaryEnvelope(room, sender, sequence, payload);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static String getString(ByteBuffer in) {
+        long length = getVarint(in);
+        // a ten byte varint can carry the sign bit, which would wrap the length negative
+        if (length < 0L || length > Integer.MAX_VALUE || length > in.remaining()) {
+            throw new IllegalArgumentException("Length out of range");
+        }
+        if (in.hasArray()) {
+            String value = new String(in.array(), in.arrayOffset() + in.position(), (int) length, StandardCharsets.UTF_8);
+            in.position(in.position() + (int) length);
+            return value;
+        }
+        byte[] bytes = new byte[(int) length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long getVarint(ByteBuffer in) {
+        long value = 0L;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    private static void putVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7fL) != 0L) {
+            out.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static int varintSize(long value) {
+        int size = 1;
+        while ((value >>>= 7) != 0L) {
+            size++;
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "BinaryEnvelope [room=" + room + ", sender=" + sender + ", sequence=" + sequence + ", payload=" + payload + "]";
+    }
+
+}
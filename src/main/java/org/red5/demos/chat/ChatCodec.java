@@ -0,0 +1,257 @@
+package org.red5.demos.chat;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Decoding and inspection helpers for inbound chat payloads.
+ */
+final class ChatCodec {
+
+    // method name of the log replay request
+    private static final String REPLAY_FROM = "replayFrom";
+
+    private ChatCodec() {
+    }
+
+    /**
+     * Decodes the readable slice of a payload as UTF-8, with leading and trailing whitespace skipped before decoding.
+     *
+     * @param payload inbound payload
+     * @return text, empty if the payload only held whitespace
+     */
+    static String decodeText(IoBuffer payload) {
+        int start = payload.position();
+        int end = payload.limit();
+        while (start < end && (payload.get(start) & 0xff) <= ' ') {
+            start++;
+        }
+        while (end > start && (payload.get(end - 1) & 0xff) <= ' ') {
+            end--;
+        }
+        if (start == end) {
+            return "";
+        }
+        if (payload.hasArray()) {
+            return new String(payload.array(), payload.arrayOffset() + start, end - start, StandardCharsets.UTF_8);
+        }
+        ByteBuffer slice = payload.buf().duplicate();
+        slice.limit(end).position(start);
+        return StandardCharsets.UTF_8.decode(slice).toString();
+    }
+
+    /**
+     * Returns the UTF-8 encoded length of the text without encoding it.
+     *
+     * @param text text
+     * @return length in bytes
+     */
+    static int utf8Length(String text) {
+        int length = 0;
+        for (int i = 0, n = text.length(); i < n; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Returns whether the text looks like a JSON envelope, which is decided by its first character alone.
+     *
+     * @param text trimmed text
+     * @return true if the text should be treated as JSON
+     */
+    static boolean isJsonEnvelope(String text) {
+        return !text.isEmpty() && text.charAt(0) == '{';
+    }
+
+    /**
+     * Validates that the text holds exactly one JSON object; the text is streamed through a reader and no tree is built.
+     *
+     * @param text trimmed text
+     * @return true if valid
+     */
+    static boolean isValidJsonObject(String text) {
+        try (JsonReader reader = new JsonReader(new StringReader(text))) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                return false;
+            }
+            reader.skipValue();
+            return reader.peek() == JsonToken.END_DOCUMENT;
+        } catch (IOException | IllegalStateException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the offset of a log replay request such as {"method":"replayFrom","offset":120}; the text is only
+     * streamed through a reader when it mentions the method at all.
+     *
+     * @param text trimmed JSON text
+     * @return offset to replay after, or -1 if the text is not a replay request
+     */
+    static long parseReplayFrom(String text) {
+        if (text.indexOf(REPLAY_FROM) < 0) {
+            return -1L;
+        }
+        try (JsonReader reader = new JsonReader(new StringReader(text))) {
+            boolean replay = false;
+            long offset = -1L;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("method".equals(name) && reader.peek() == JsonToken.STRING) {
+                    replay = REPLAY_FROM.equals(reader.nextString());
+                } else if ("offset".equals(name) && reader.peek() == JsonToken.NUMBER) {
+                    offset = reader.nextLong();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            return replay && offset >= 0L ? offset : -1L;
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    /**
+     * Encodes the reply to a log replay request.
+     *
+     * @param offset offset of the last message in the reply, the next request continues after it
+     * @param messages logged messages in offset order
+     * @return JSON text
+     */
+    static String encodeReplay(long offset, List<String> messages) {
+        return encode("replay", writer -> {
+            writer.name("offset").value(offset);
+            writeMessages(writer.name("messages"), messages);
+        });
+    }
+
+    /**
+     * Encodes several messages as one frame, e.g. {"name":"chat","method":"batch","messages":["...","..."]}; every
+     * message is a JSON string, so its text may hold anything, newlines included.
+     *
+     * @param messages messages in delivery order
+     * @return JSON text
+     */
+    static String encodeBatch(List<String> messages) {
+        return encode("batch", writer -> writeMessages(writer.name("messages"), messages));
+    }
+
+    /**
+     * Encodes the recent messages of a room for a joining client, in the same form as a batch with the method history.
+     *
+     * @param messages messages oldest first
+     * @return JSON text
+     */
+    static String encodeHistory(List<String> messages) {
+        return encode("history", writer -> writeMessages(writer.name("messages"), messages));
+    }
+
+    /**
+     * Encodes a presence update for a room; the joined and left lists are empty when the room only gets its count.
+     *
+     * @param room room path
+     * @param count members after the update
+     * @param joined members who joined since the last update
+     * @param left members who left since the last update
+     * @return JSON text
+     */
+    static String encodePresence(String room, int count, List<Long> joined, List<Long> left) {
+        return encode("presence", writer -> {
+            writer.name("room").value(room);
+            writer.name("count").value(count);
+            if (!joined.isEmpty()) {
+                writeIds(writer.name("joined"), joined);
+            }
+            if (!left.isEmpty()) {
+                writeIds(writer.name("left"), left);
+            }
+        });
+    }
+
+    /**
+     * Encodes the roster sent to a member joining a room; the member list is empty when the room only gets its count.
+     *
+     * @param room room path
+     * @param count members
+     * @param members member ids
+     * @return JSON text
+     */
+    static String encodeRoster(String room, int count, List<Long> members) {
+        return encode("roster", writer -> {
+            writer.name("room").value(room);
+            writer.name("count").value(count);
+            if (!members.isEmpty()) {
+                writeIds(writer.name("members"), members);
+            }
+        });
+    }
+
+    /**
+     * Writes a server frame of the form {"name":"chat","method":method,...}, the body supplying the remaining fields.
+     *
+     * @param method frame method
+     * @param body writes the fields after the method
+     * @return JSON text
+     */
+    private static String encode(String method, Body body) {
+        StringWriter out = new StringWriter();
+        try (JsonWriter writer = new JsonWriter(out)) {
+            writer.beginObject();
+            writer.name("name").value("chat");
+            writer.name("method").value(method);
+            body.write(writer);
+            writer.endObject();
+        } catch (IOException e) {
+            // not thrown by a StringWriter
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    private static void writeMessages(JsonWriter writer, List<String> messages) throws IOException {
+        writer.beginArray();
+        for (String message : messages) {
+            writer.value(message);
+        }
+        writer.endArray();
+    }
+
+    private static void writeIds(JsonWriter writer, List<Long> ids) throws IOException {
+        writer.beginArray();
+        for (Long id : ids) {
+            writer.value(id);
+        }
+        writer.endArray();
+    }
+
+    // fields of a frame, a Consumer cannot throw the IOException JsonWriter declares
+    @FunctionalInterface
+    private interface Body {
+
+        void write(JsonWriter writer) throws IOException;
+
+    }
+
+}
@@ -0,0 +1,108 @@
+package org.red5.demos.chat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A chat payload prepared once for broadcast; text recipients share the same String, binary recipients share the same
+ * encoded envelope.
+ */
+public final class ChatFrame {
+
+    private final String text;
+
+    // room path and room sequence assigned at ingest, carried by binary envelopes
+    private final String room;
+
+    private final long sequence;
+
+    // System.nanoTime when the message was accepted by its room, zero for frames that did not pass a room queue
+    private final long enqueued;
+
+    // binary envelope of the frame, created on first use and shared by all binary recipients
+    private volatile byte[] binary;
+
+    private ChatFrame(String room, long sequence, String text, long enqueued) {
+        this.room = room;
+        this.sequence = sequence;
+        this.text = text;
+        this.enqueued = enqueued;
+    }
+
+    /**
+     * Creates a frame for the given text.
+     * 
+     * @param text message text
+     * @return frame
+     */
+    public static ChatFrame of(String text) {
+        return new ChatFrame("", 0L, text, 0L);
+    }
+
+    /**
+     * Creates a frame for the given text delivered on a room.
+     * 
+     * @param room room path
+     * @param sequence room sequence, zero if the frame is not sequenced
+     * @param text message text
+     * @return frame
+     */
+    public static ChatFrame of(String room, long sequence, String text) {
+        return new ChatFrame(room, sequence, text, 0L);
+    }
+
+    /**
+     * Creates a frame for the given text taken from a room queue; its delivery latency is measured from the enqueue time.
+     * 
+     * @param room room path
+     * @param sequence room sequence
+     * @param text message text
+     * @param enqueued System.nanoTime the message, or the oldest message of a batch, was queued
+     * @return frame
+     */
+    static ChatFrame of(String room, long sequence, String text, long enqueued) {
+        return new ChatFrame(room, sequence, text, enqueued);
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    /**
+     * Returns the room sequence of the frame; a batch carries the sequence of its last message.
+     * 
+     * @return sequence, zero for frames that are not sequenced
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    long getEnqueued() {
+        return enqueued;
+    }
+
+    /**
+     * Returns the frame as a binary envelope; the array is shared by every binary recipient and must not be modified.
+     * 
+     * @return envelope bytes
+     */
+    public byte[] getBinary() {
+        byte[] bytes = binary;
+        if (bytes == null) {
+            // server relayed frames carry sender id 0, a racing thread may encode twice and either result may win
+            bytes = BinaryEnvelope.encode(room, 0L, sequence, ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+            binary = bytes;
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+}
@@ -0,0 +1,346 @@
+package org.red5.demos.chat;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Routing metrics for a chat application, published over JMX. Hot path updates are striped counters, gauges are read
+ * from the router and listener only when JMX asks for them.
+ */
+public class ChatMetrics implements ChatMetricsMXBean {
+
+    private static Logger log = LoggerFactory.getLogger(ChatMetrics.class);
+
+    private final LongAdder messagesIn = new LongAdder();
+
+    private final LongAdder messagesOut = new LongAdder();
+
+    private final LongAdder sendFailures = new LongAdder();
+
+    private final LongAdder broadcasts = new LongAdder();
+
+    private final LongAdder fanOut = new LongAdder();
+
+    private final LongAccumulator maxFanOut = new LongAccumulator(Long::max, 0L);
+
+    private final LatencyHistogram deliveryLatency = new LatencyHistogram();
+
+    private volatile Router router;
+
+    private volatile WebSocketChatDataListener listener;
+
+    // per second rates, refreshed by the sampler
+    private volatile double messagesInRate;
+
+    private volatile double messagesOutRate;
+
+    private long lastIn;
+
+    private long lastOut;
+
+    private ScheduledExecutorService sampler;
+
+    private ObjectName objectName;
+
+    void recordIn() {
+        messagesIn.increment();
+    }
+
+    void recordOut() {
+        messagesOut.increment();
+    }
+
+    void recordSendFailure() {
+        sendFailures.increment();
+    }
+
+    void recordFanOut(int recipients) {
+        broadcasts.increment();
+        fanOut.add(recipients);
+        maxFanOut.accumulate(recipients);
+    }
+
+    void recordDelivery(ChatFrame frame) {
+        deliveryLatency.record(System.nanoTime() - frame.getEnqueued());
+    }
+
+    void setRouter(Router router) {
+        this.router = router;
+    }
+
+    void setListener(WebSocketChatDataListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server and starts the rate sampler.
+     * 
+     * @param name application name
+     */
+    void register(String name) {
+        sampler = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("chat-metrics-" + name).factory());
+        sampler.scheduleAtFixedRate(this::sample, 1L, 1L, TimeUnit.SECONDS);
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName("org.red5.demos.chat:type=ChatMetrics,name=" + ObjectName.quote(name));
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+            log.info("Chat metrics registered as {}", objectName);
+        } catch (Exception e) {
+            log.warn("Chat metrics could not be registered", e);
+            objectName = null;
+        }
+    }
+
+    /**
+     * Stops the rate sampler and unregisters the metrics.
+     */
+    void unregister() {
+        if (sampler != null) {
+            sampler.shutdownNow();
+            sampler = null;
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                log.debug("Chat metrics unregister failed", e);
+            }
+            objectName = null;
+        }
+    }
+
+    private void sample() {
+        long in = messagesIn.sum();
+        long out = messagesOut.sum();
+        messagesInRate = in - lastIn;
+        messagesOutRate = out - lastOut;
+        lastIn = in;
+        lastOut = out;
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public double getMessagesInRate() {
+        return messagesInRate;
+    }
+
+    @Override
+    public double getMessagesOutRate() {
+        return messagesOutRate;
+    }
+
+    @Override
+    public long getSendFailures() {
+        return sendFailures.sum();
+    }
+
+    @Override
+    public long getBroadcasts() {
+        return broadcasts.sum();
+    }
+
+    @Override
+    public double getAverageFanOut() {
+        long count = broadcasts.sum();
+        return count == 0L ? 0d : (double) fanOut.sum() / count;
+    }
+
+    @Override
+    public long getMaxFanOut() {
+        return maxFanOut.get();
+    }
+
+    @Override
+    public long getDeliveries() {
+        return deliveryLatency.getCount();
+    }
+
+    @Override
+    public long getDeliveryLatencyP50Micros() {
+        return deliveryLatency.getPercentileMicros(50d);
+    }
+
+    @Override
+    public long getDeliveryLatencyP99Micros() {
+        return deliveryLatency.getPercentileMicros(99d);
+    }
+
+    @Override
+    public long getDeliveryLatencyP999Micros() {
+        return deliveryLatency.getPercentileMicros(99.9d);
+    }
+
+    @Override
+    public long getDeliveryLatencyMaxMicros() {
+        return deliveryLatency.getMaxMicros();
+    }
+
+    @Override
+    public long[] getDeliveryLatencyHistogram() {
+        return deliveryLatency.getCounts();
+    }
+
+    @Override
+    public int getRoomCount() {
+        Router router = this.router;
+        return router != null ? router.getRoomCount() : 0;
+    }
+
+    @Override
+    public long getRoomsReclaimed() {
+        Router router = this.router;
+        return router != null ? router.getRoomsReclaimed() : 0L;
+    }
+
+    @Override
+    public Map<String, Integer> getQueueDepths() {
+        Router router = this.router;
+        return router != null ? router.getQueueDepths() : Collections.emptyMap();
+    }
+
+    @Override
+    public int getActiveConnections() {
+        WebSocketChatDataListener listener = this.listener;
+        return listener != null ? listener.getConnectionCount() : 0;
+    }
+
+    @Override
+    public Map<String, Integer> getConnectionsPerPath() {
+        WebSocketChatDataListener listener = this.listener;
+        return listener != null ? listener.getConnectionCounts() : Collections.emptyMap();
+    }
+
+    @Override
+    public long getDroppedOldest() {
+        Router router = this.router;
+        return router != null ? router.getDroppedOldest() : 0L;
+    }
+
+    @Override
+    public long getDroppedNewest() {
+        Router router = this.router;
+        return router != null ? router.getDroppedNewest() : 0L;
+    }
+
+    @Override
+    public long getRejected() {
+        Router router = this.router;
+        return router != null ? router.getRejected() : 0L;
+    }
+
+    @Override
+    public long getBlockTimeouts() {
+        Router router = this.router;
+        return router != null ? router.getBlockTimeouts() : 0L;
+    }
+
+    @Override
+    public long getLogFailures() {
+        Router router = this.router;
+        return router != null ? router.getLogFailures() : 0L;
+    }
+
+    @Override
+    public long getEvicted() {
+        WebSocketChatDataListener listener = this.listener;
+        return listener != null ? listener.getEvicted() : 0L;
+    }
+
+    @Override
+    public long getCoalesced() {
+        WebSocketChatDataListener listener = this.listener;
+        return listener != null ? listener.getCoalesced() : 0L;
+    }
+
+    @Override
+    public long getDuplicates() {
+        WebSocketChatDataListener listener = this.listener;
+        Router router = this.router;
+        return (listener != null ? listener.getDuplicates() : 0L) + (router != null ? router.getSseDuplicates() : 0L);
+    }
+
+    @Override
+    public long getRateLimited() {
+        WebSocketChatDataListener listener = this.listener;
+        return listener != null ? listener.getRateLimited() : 0L;
+    }
+
+    @Override
+    public long getRoomRateLimited() {
+        WebSocketChatDataListener listener = this.listener;
+        return listener != null ? listener.getRoomRateLimited() : 0L;
+    }
+
+    @Override
+    public long getThrottled() {
+        WebSocketChatDataListener listener = this.listener;
+        return listener != null ? listener.getThrottled() : 0L;
+    }
+
+    @Override
+    public long getRateDisconnects() {
+        WebSocketChatDataListener listener = this.listener;
+        return listener != null ? listener.getRateDisconnects() : 0L;
+    }
+
+    @Override
+    public long getPresenceUpdates() {
+        WebSocketChatDataListener listener = this.listener;
+        return listener != null ? listener.getPresenceUpdates() : 0L;
+    }
+
+    @Override
+    public int getSseQueueDepth() {
+        Router router = this.router;
+        return router != null ? router.getSseQueueDepth() : 0;
+    }
+
+    @Override
+    public long getSseDropped() {
+        Router router = this.router;
+        return router != null ? router.getSseDropped() : 0L;
+    }
+
+    @Override
+    public long getSseBroadcasts() {
+        Router router = this.router;
+        return router != null ? router.getSseBroadcasts() : 0L;
+    }
+
+    @Override
+    public long getClusterDropped() {
+        Router router = this.router;
+        return router != null ? router.getClusterDropped() : 0L;
+    }
+
+    @Override
+    public long getClusterRejected() {
+        Router router = this.router;
+        return router != null ? router.getClusterRejected() : 0L;
+    }
+
+}
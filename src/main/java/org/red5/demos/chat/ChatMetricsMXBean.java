@@ -0,0 +1,84 @@
+package org.red5.demos.chat;
+
+import java.util.Map;
+
+/**
+ * JMX view of the chat routing metrics.
+ */
+public interface ChatMetricsMXBean {
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    double getMessagesInRate();
+
+    double getMessagesOutRate();
+
+    long getSendFailures();
+
+    long getBroadcasts();
+
+    double getAverageFanOut();
+
+    long getMaxFanOut();
+
+    long getDeliveries();
+
+    long getDeliveryLatencyP50Micros();
+
+    long getDeliveryLatencyP99Micros();
+
+    long getDeliveryLatencyP999Micros();
+
+    long getDeliveryLatencyMaxMicros();
+
+    long[] getDeliveryLatencyHistogram();
+
+    int getRoomCount();
+
+    long getRoomsReclaimed();
+
+    Map<String, Integer> getQueueDepths();
+
+    int getActiveConnections();
+
+    Map<String, Integer> getConnectionsPerPath();
+
+    long getDroppedOldest();
+
+    long getDroppedNewest();
+
+    long getRejected();
+
+    long getBlockTimeouts();
+
+    long getLogFailures();
+
+    long getEvicted();
+
+    long getCoalesced();
+
+    long getDuplicates();
+
+    long getRateLimited();
+
+    long getRoomRateLimited();
+
+    long getThrottled();
+
+    long getRateDisconnects();
+
+    long getPresenceUpdates();
+
+    int getSseQueueDepth();
+
+    long getSseDropped();
+
+    long getSseBroadcasts();
+
+    long getClusterDropped();
+
+    long getClusterRejected();
+
+}
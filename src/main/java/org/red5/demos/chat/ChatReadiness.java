@@ -0,0 +1,115 @@
+package org.red5.demos.chat;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Startup state of a chat application, published over JMX. The application only reports ready once its router is
+ * running and the chat listener is attached to the WebSocket scope, which is when it can actually route.
+ */
+public class ChatReadiness implements ChatReadinessMXBean {
+
+    private static Logger log = LoggerFactory.getLogger(ChatReadiness.class);
+
+    enum State {
+        STARTING, READY, FAILED, STOPPED
+    }
+
+    private volatile State state = State.STOPPED;
+
+    private volatile Router router;
+
+    // System.nanoTime() of appStart
+    private volatile long started;
+
+    // time from appStart to ready in ms, -1 until ready
+    private volatile long startupMillis = -1L;
+
+    private volatile int attempts;
+
+    private ObjectName objectName;
+
+    /**
+     * Resets the state to starting and registers with the platform MBean server.
+     * 
+     * @param name application name
+     */
+    void starting(String name) {
+        started = System.nanoTime();
+        startupMillis = -1L;
+        attempts = 0;
+        router = null;
+        state = State.STARTING;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName("org.red5.demos.chat:type=ChatReadiness,name=" + ObjectName.quote(name));
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+            log.info("Chat readiness registered as {}", objectName);
+        } catch (Exception e) {
+            log.warn("Chat readiness could not be registered", e);
+            objectName = null;
+        }
+    }
+
+    void attempted() {
+        attempts++;
+    }
+
+    void ready(Router router) {
+        this.router = router;
+        startupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        state = State.READY;
+        log.info("Chat ready after {} ms and {} attempt(s)", startupMillis, attempts);
+    }
+
+    void failed() {
+        state = State.FAILED;
+    }
+
+    /**
+     * Marks the application stopped and unregisters from JMX.
+     */
+    void stopped() {
+        state = State.STOPPED;
+        router = null;
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                log.debug("Chat readiness unregister failed", e);
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public String getState() {
+        return state.name();
+    }
+
+    @Override
+    public boolean isReady() {
+        Router current = router;
+        return state == State.READY && current != null && current.isRunning();
+    }
+
+    @Override
+    public long getStartupMillis() {
+        return startupMillis;
+    }
+
+    @Override
+    public int getStartupAttempts() {
+        return attempts;
+    }
+
+}
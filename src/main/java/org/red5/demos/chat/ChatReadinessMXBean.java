@@ -0,0 +1,16 @@
+package org.red5.demos.chat;
+
+/**
+ * JMX view of the chat application startup state, polled by deployment tooling before traffic is moved over.
+ */
+public interface ChatReadinessMXBean {
+
+    String getState();
+
+    boolean isReady();
+
+    long getStartupMillis();
+
+    int getStartupAttempts();
+
+}
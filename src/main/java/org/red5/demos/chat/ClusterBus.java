@@ -0,0 +1,45 @@
+package org.red5.demos.chat;
+
+import java.util.function.Consumer;
+
+/**
+ * Transport carrying room messages between chat nodes. Implementations may batch and may deliver a message more than
+ * once; the router drops duplicates and messages from its own node.
+ */
+public interface ClusterBus {
+
+    /**
+     * Starts the bus.
+     * 
+     * @param receiver handed every message received from a peer node
+     * @throws Exception if the transport cannot be opened
+     */
+    void start(Consumer<ClusterMessage> receiver) throws Exception;
+
+    /**
+     * Publishes a locally accepted message to the peer nodes; must not block the caller on the network.
+     * 
+     * @param message message
+     */
+    void publish(ClusterMessage message);
+
+    /**
+     * Stops the bus and releases its resources.
+     */
+    void stop();
+
+    /**
+     * Returns how many published messages never left this node, e.g. because the send queue was full.
+     * 
+     * @return dropped messages
+     */
+    long getDropped();
+
+    /**
+     * Returns how many received datagrams or messages were refused, e.g. as malformed or unauthenticated.
+     * 
+     * @return rejected receipts
+     */
+    long getRejected();
+
+}
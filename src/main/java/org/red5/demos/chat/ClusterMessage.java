@@ -0,0 +1,44 @@
+package org.red5.demos.chat;
+
+/**
+ * A room message exchanged between nodes, tagged with the node it came from and that node's sequence number.
+ */
+public final class ClusterMessage {
+
+    private final long origin;
+
+    private final long sequence;
+
+    private final String path;
+
+    private final String message;
+
+    public ClusterMessage(long origin, long sequence, String path, String message) {
+        this.origin = origin;
+        this.sequence = sequence;
+        this.path = path;
+        this.message = message;
+    }
+
+    public long getOrigin() {
+        return origin;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return "ClusterMessage [origin=" + origin + ", sequence=" + sequence + ", path=" + path + "]";
+    }
+
+}
@@ -0,0 +1,72 @@
+package org.red5.demos.chat;
+
+import java.util.Arrays;
+
+/**
+ * Sliding window duplicate filter over increasing sequence numbers; remembers the last {@value #SIZE} sequences in a
+ * fixed bitmap, anything older than the window is treated as a duplicate.
+ */
+final class DedupWindow {
+
+    static final int SIZE = 1024;
+
+    private final long[] bits = new long[SIZE / 64];
+
+    // highest sequence seen, -1 before the first
+    private long highest = -1L;
+
+    /**
+     * Records a sequence number.
+     *
+     * @param sequence sequence number
+     * @return true the first time a sequence within the window is seen, false for duplicates and stale sequences
+     */
+    synchronized boolean accept(long sequence) {
+        if (sequence > highest) {
+            // clear the slots the window slides over
+            long advance = highest < 0L ? SIZE : sequence - highest;
+            if (advance >= SIZE) {
+                Arrays.fill(bits, 0L);
+            } else {
+                for (long s = highest + 1; s < sequence; s++) {
+                    clear(s);
+                }
+            }
+            highest = sequence;
+            set(sequence);
+            return true;
+        }
+        if (highest - sequence >= SIZE) {
+            return false;
+        }
+        if (isSet(sequence)) {
+            return false;
+        }
+        set(sequence);
+        return true;
+    }
+
+    synchronized long getHighest() {
+        return highest;
+    }
+
+    private int slot(long sequence) {
+        return (int) Math.floorMod(sequence, (long) SIZE);
+    }
+
+    private boolean isSet(long sequence) {
+        int slot = slot(sequence);
+        return (bits[slot >>> 6] & (1L << (slot & 63))) != 0L;
+    }
+
+    private void set(long sequence) {
+        int slot = slot(sequence);
+        bits[slot >>> 6] |= 1L << (slot & 63);
+    }
+
+    private void clear(long sequence) {
+        int slot = slot(sequence);
+        bits[slot >>> 6] &= ~(1L << (slot & 63));
+    }
+
+}
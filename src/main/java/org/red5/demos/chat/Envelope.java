@@ -0,0 +1,55 @@
+package org.red5.demos.chat;
+
+/**
+ * A message waiting in a room queue, along with the time it was accepted, its room sequence and its offset in the room
+ * log.
+ */
+final class Envelope {
+
+    private final String message;
+
+    // System.nanoTime() when the router accepted the message
+    private final long enqueued;
+
+    // sequence assigned by the room at ingest, increasing in queue order
+    private final long sequence;
+
+    // offset in the room log, zero when the message is not logged
+    private final long offset;
+
+    // true when the message came from the room's shared object and must not be written back to it
+    private final boolean shared;
+
+    Envelope(String message, long sequence, long offset) {
+        this(message, sequence, offset, false);
+    }
+
+    Envelope(String message, long sequence, long offset, boolean shared) {
+        this.message = message;
+        this.sequence = sequence;
+        this.offset = offset;
+        this.shared = shared;
+        this.enqueued = System.nanoTime();
+    }
+
+    String getMessage() {
+        return message;
+    }
+
+    long getEnqueued() {
+        return enqueued;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    long getOffset() {
+        return offset;
+    }
+
+    boolean isShared() {
+        return shared;
+    }
+
+}
@@ -0,0 +1,83 @@
+package org.red5.demos.chat;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with power of two microsecond buckets; bucket <i>i</i> counts values up to 2^i µs.
+ */
+final class LatencyHistogram {
+
+    // the last bucket collects everything at or above 2^24 µs, roughly 16 seconds
+    private static final int BUCKETS = 26;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+    private final LongAccumulator max = new LongAccumulator(Long::max, 0L);
+
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos latency in nanoseconds
+     */
+    void record(long nanos) {
+        long micros = Math.max(0L, nanos / 1000L);
+        // ceiling of log2, so each bucket holds values up to its bound
+        int index = micros <= 1L ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1L);
+        buckets[Math.min(index, BUCKETS - 1)].increment();
+        max.accumulate(micros);
+    }
+
+    long getCount() {
+        long count = 0L;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    long getMaxMicros() {
+        return max.get();
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given percentile.
+     *
+     * @param percentile between 0 and 100
+     * @return latency bound in microseconds, zero when nothing has been recorded
+     */
+    long getPercentileMicros(double percentile) {
+        long[] counts = getCounts();
+        long total = 0L;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0L) {
+            return 0L;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100d);
+        long seen = 0L;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(1L << i, getMaxMicros());
+            }
+        }
+        return getMaxMicros();
+    }
+
+    long[] getCounts() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+}
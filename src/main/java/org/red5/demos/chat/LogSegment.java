@@ -0,0 +1,272 @@
+package org.red5.demos.chat;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One memory-mapped file of a room log. Records are written back to back as length, timestamp and UTF-8 bytes; the
+ * file is zero filled when mapped, so a zero length marks the end of the written records.
+ */
+final class LogSegment {
+
+    private static Logger log = LoggerFactory.getLogger(LogSegment.class);
+
+    // unmaps a buffer without waiting for it to be collected, null when the runtime does not allow it
+    private static final MethodHandle UNMAP = unmapper();
+
+    // length and timestamp
+    static final int RECORD_OVERHEAD = 4 + 8;
+
+    // name of a segment mapped ahead of use, it gets its base offset once the segment before it is full
+    static final String SPARE = "spare.log.tmp";
+
+    private final long baseOffset;
+
+    private final Path file;
+
+    private final MappedByteBuffer map;
+
+    // start position of each record, indexed by offset - baseOffset
+    private int[] positions = new int[256];
+
+    private int count;
+
+    private long lastTimestamp;
+
+    // true when records were written since the last force
+    private volatile boolean dirty;
+
+    // set once unmapped, the map must not be touched after that; guarded by the segment
+    private boolean closed;
+
+    private LogSegment(long baseOffset, Path file, MappedByteBuffer map) {
+        this.baseOffset = baseOffset;
+        this.file = file;
+        this.map = map;
+    }
+
+    /**
+     * Creates a new segment, or opens an existing one and recovers its records.
+     *
+     * @param dir room log directory
+     * @param baseOffset offset of the first record
+     * @param size mapped size in bytes
+     * @return segment
+     * @throws IOException on file errors
+     */
+    static LogSegment open(Path dir, long baseOffset, int size) throws IOException {
+        Path file = dir.resolve(String.format("%020d.log", baseOffset));
+        boolean exists = Files.exists(file);
+        MappedByteBuffer map;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // an existing segment keeps its own size
+            int mapSize = exists ? (int) Math.max(channel.size(), size) : size;
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0L, mapSize);
+        }
+        LogSegment segment = new LogSegment(baseOffset, file, map);
+        if (exists) {
+            segment.recover();
+        }
+        return segment;
+    }
+
+    /**
+     * Creates an empty segment under the spare name, so the mapping is done before the segment is needed.
+     *
+     * @param dir room log directory
+     * @param size mapped size in bytes
+     * @return spare segment, see {@link #assign(long)}
+     * @throws IOException on file errors
+     */
+    static LogSegment allocate(Path dir, int size) throws IOException {
+        Path file = dir.resolve(SPARE);
+        MappedByteBuffer map;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0L, size);
+        }
+        return new LogSegment(-1L, file, map);
+    }
+
+    /**
+     * Turns a spare segment into the segment starting at an offset; only the file is renamed, the mapping is kept.
+     *
+     * @param baseOffset offset of the first record
+     * @return segment
+     * @throws IOException if the file cannot be renamed
+     */
+    LogSegment assign(long baseOffset) throws IOException {
+        Path target = Files.move(file, file.resolveSibling(String.format("%020d.log", baseOffset)));
+        return new LogSegment(baseOffset, target, map);
+    }
+
+    static long parseBaseOffset(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - ".log".length()));
+    }
+
+    private void recover() {
+        int pos = 0;
+        while (pos + RECORD_OVERHEAD <= map.capacity()) {
+            int length = map.getInt(pos);
+            if (length <= 0 || pos + RECORD_OVERHEAD + length > map.capacity()) {
+                break;
+            }
+            lastTimestamp = map.getLong(pos + 4);
+            index(pos);
+            pos += RECORD_OVERHEAD + length;
+        }
+        map.position(pos);
+    }
+
+    private void index(int position) {
+        if (count == positions.length) {
+            positions = Arrays.copyOf(positions, count * 2);
+        }
+        positions[count++] = position;
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @param bytes encoded message
+     * @param timestamp time in milliseconds
+     * @return false if the segment is full
+     */
+    boolean append(byte[] bytes, long timestamp) {
+        int pos = map.position();
+        if (map.remaining() < RECORD_OVERHEAD + bytes.length) {
+            return false;
+        }
+        // the length is written last so recovery stops before a record that was cut short
+        map.position(pos + 4);
+        map.putLong(timestamp).put(bytes);
+        map.putInt(pos, bytes.length);
+        index(pos);
+        lastTimestamp = timestamp;
+        dirty = true;
+        return true;
+    }
+
+    /**
+     * Reads the record at an offset within this segment.
+     *
+     * @param offset message offset
+     * @return message
+     */
+    String read(long offset) {
+        int pos = positions[(int) (offset - baseOffset)];
+        int length = map.getInt(pos);
+        byte[] bytes = new byte[length];
+        map.get(pos + RECORD_OVERHEAD, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Flushes written records to storage if there are any.
+     */
+    synchronized void force() {
+        if (dirty && !closed) {
+            dirty = false;
+            map.force();
+        }
+    }
+
+    /**
+     * Forces and unmaps the segment; it must no longer be read or written once it is closed.
+     */
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+        if (dirty) {
+            dirty = false;
+            map.force();
+        }
+        closed = true;
+        if (UNMAP != null) {
+            try {
+                UNMAP.invokeExact((ByteBuffer) map);
+            } catch (Throwable t) {
+                log.warn("Unmapping {} failed, it is released when collected", file, t);
+            }
+        }
+    }
+
+    boolean isDirty() {
+        return dirty;
+    }
+
+    long getBaseOffset() {
+        return baseOffset;
+    }
+
+    /**
+     * Returns the offset following the last record.
+     *
+     * @return next offset
+     */
+    long getNextOffset() {
+        return baseOffset + count;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    /**
+     * Returns the bytes taken by the records written so far, rather than the mapped size.
+     *
+     * @return written bytes
+     */
+    int getLength() {
+        return map.position();
+    }
+
+    /**
+     * Closes the segment and deletes its file; the file is unmapped first, since some platforms cannot delete a mapped
+     * file.
+     *
+     * @throws IOException if the file cannot be deleted
+     */
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(file);
+    }
+
+    private static MethodHandle unmapper() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            MethodHandle invokeCleaner = MethodHandles.lookup().findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class));
+            return invokeCleaner.bindTo(field.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.info("Log segments cannot be unmapped explicitly, they are released when collected");
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LogSegment [file=" + file + ", count=" + count + "]";
+    }
+
+}
@@ -0,0 +1,315 @@
+package org.red5.demos.chat;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only message log with a directory of memory-mapped segments per room. Appends only write to the mapped
+ * segment; a flusher forces every dirty segment once per flush interval, so one sync covers all messages written since
+ * the last one and a crash loses at most that interval.
+ */
+public class MessageLog {
+
+    private static Logger log = LoggerFactory.getLogger(MessageLog.class);
+
+    // milliseconds between retention sweeps
+    private static final long RETENTION_INTERVAL = 60000L;
+
+    private String directory = "chat-log";
+
+    // mapped size of each segment
+    private int segmentSize = 16 * 1024 * 1024;
+
+    // milliseconds a closed segment is kept after its last message
+    private long retentionTime = 24 * 60 * 60 * 1000L;
+
+    // bytes of segments kept per room
+    private long retentionBytes = 256 * 1024 * 1024L;
+
+    // milliseconds between group commits
+    private long flushInterval = 100L;
+
+    private Path root;
+
+    private ConcurrentMap<String, RoomLog> logs = new ConcurrentHashMap<>();
+
+    // released rooms whose expired files are being removed, reopening one waits until that is done
+    private final ConcurrentMap<String, CountDownLatch> expiring = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService flusher;
+
+    /**
+     * Opens the log directory, recovers the logs of every room found there and starts the flusher.
+     *
+     * @throws IOException on file errors
+     */
+    public void start() throws IOException {
+        root = Paths.get(directory);
+        Files.createDirectories(root);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path dir : stream) {
+                String path = URLDecoder.decode(dir.getFileName().toString(), StandardCharsets.UTF_8);
+                RoomLog roomLog = RoomLog.open(path, dir, segmentSize);
+                logs.put(path, roomLog);
+                log.debug("Recovered log for {} offsets {} to {} delivered {}", path, roomLog.getFirstOffset(), roomLog.getNextOffset() - 1L, roomLog.getDelivered());
+            }
+        }
+        log.info("Message log opened at {} with {} rooms", root.toAbsolutePath(), logs.size());
+        flusher = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("chat-log-flusher").factory());
+        flusher.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        flusher.scheduleWithFixedDelay(this::retain, RETENTION_INTERVAL, RETENTION_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the flusher, forces everything written so far and unmaps the segments.
+     */
+    public void stop() {
+        if (flusher != null) {
+            flusher.shutdownNow();
+            flusher = null;
+        }
+        logs.values().forEach(RoomLog::close);
+        logs.clear();
+        log.info("Message log closed");
+    }
+
+    public boolean isRunning() {
+        return flusher != null;
+    }
+
+    /**
+     * Returns the log of a room, creating it on first use.
+     *
+     * @param path room path
+     * @return room log
+     */
+    RoomLog getRoomLog(String path) {
+        return logs.computeIfAbsent(path, k -> {
+            // only when racing a retention sweep over the files of the released room
+            CountDownLatch expiry = expiring.get(k);
+            if (expiry != null) {
+                awaitUninterruptibly(expiry);
+            }
+            try {
+                return RoomLog.open(k, root.resolve(URLEncoder.encode(k, StandardCharsets.UTF_8)), segmentSize);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Returns the paths of all rooms with a log.
+     *
+     * @return room paths
+     */
+    public Set<String> getPaths() {
+        return Collections.unmodifiableSet(logs.keySet());
+    }
+
+    /**
+     * Reads the messages of a room after an offset.
+     *
+     * @param path room path
+     * @param after offset to read after, zero for the oldest retained message
+     * @param max maximum messages
+     * @return messages in offset order, empty if the room has no log
+     */
+    public List<String> read(String path, long after, int max) {
+        RoomLog roomLog = logs.get(path);
+        return roomLog != null ? roomLog.read(after, max) : Collections.emptyList();
+    }
+
+    /**
+     * Returns the offset of the oldest retained message of a room.
+     *
+     * @param path room path
+     * @return offset, zero if the room has no log
+     */
+    public long getFirstOffset(String path) {
+        RoomLog roomLog = logs.get(path);
+        return roomLog != null ? roomLog.getFirstOffset() : 0L;
+    }
+
+    /**
+     * Returns the offset of the newest message of a room.
+     *
+     * @param path room path
+     * @return offset, zero if the room has no messages
+     */
+    public long getLastOffset(String path) {
+        RoomLog roomLog = logs.get(path);
+        return roomLog != null ? roomLog.getNextOffset() - 1L : 0L;
+    }
+
+    private void flush() {
+        logs.values().forEach(roomLog -> {
+            roomLog.flush();
+            roomLog.prepare();
+        });
+    }
+
+    /**
+     * Closes the log of a room that is no longer in use; its files stay on disk and the log is reopened on next use.
+     *
+     * @param path room path
+     */
+    void release(String path) {
+        RoomLog roomLog = logs.remove(path);
+        if (roomLog != null) {
+            roomLog.close();
+        }
+    }
+
+    void retain() {
+        long oldest = System.currentTimeMillis() - retentionTime;
+        logs.values().forEach(roomLog -> roomLog.retain(oldest, retentionBytes));
+        // released rooms are not open, their expired segments are removed by file time
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path dir : stream) {
+                String path = URLDecoder.decode(dir.getFileName().toString(), StandardCharsets.UTF_8);
+                // claimed on the map entry so the room is not reopened meanwhile, the files are removed outside it
+                CountDownLatch done = new CountDownLatch(1);
+                boolean[] claimed = new boolean[1];
+                logs.compute(path, (k, roomLog) -> {
+                    if (roomLog == null) {
+                        expiring.put(k, done);
+                        claimed[0] = true;
+                    }
+                    return roomLog;
+                });
+                if (claimed[0]) {
+                    try {
+                        expire(dir, oldest);
+                    } finally {
+                        expiring.remove(path);
+                        done.countDown();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Retention sweep failed", e);
+        }
+    }
+
+    /**
+     * Deletes the expired segments of a released room, and the room directory once no segment is left.
+     */
+    private static void expire(Path dir, long oldest) {
+        try {
+            boolean remaining = false;
+            try (DirectoryStream<Path> segments = Files.newDirectoryStream(dir, "*.log")) {
+                for (Path segment : segments) {
+                    if (Files.getLastModifiedTime(segment).toMillis() < oldest) {
+                        Files.delete(segment);
+                    } else {
+                        remaining = true;
+                    }
+                }
+            }
+            if (!remaining) {
+                try (DirectoryStream<Path> rest = Files.newDirectoryStream(dir)) {
+                    for (Path file : rest) {
+                        Files.delete(file);
+                    }
+                }
+                Files.delete(dir);
+            }
+        } catch (IOException e) {
+            log.warn("Expiring {} failed", dir, e);
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public void setSegmentSize(int segmentSize) {
+        if (segmentSize <= LogSegment.RECORD_OVERHEAD) {
+            throw new IllegalArgumentException("Segment size is too small");
+        }
+        this.segmentSize = segmentSize;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Sets how long a closed segment is kept after its last message.
+     *
+     * @param retentionTime time in milliseconds
+     */
+    public void setRetentionTime(long retentionTime) {
+        this.retentionTime = retentionTime;
+    }
+
+    public long getRetentionTime() {
+        return retentionTime;
+    }
+
+    /**
+     * Sets how many bytes of segments are kept per room; the segment being written is always kept.
+     *
+     * @param retentionBytes bytes
+     */
+    public void setRetentionBytes(long retentionBytes) {
+        this.retentionBytes = retentionBytes;
+    }
+
+    public long getRetentionBytes() {
+        return retentionBytes;
+    }
+
+    /**
+     * Sets how often written messages are forced to storage.
+     *
+     * @param flushInterval interval in milliseconds
+     */
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+
+}
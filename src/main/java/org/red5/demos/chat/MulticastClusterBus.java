@@ -0,0 +1,411 @@
+package org.red5.demos.chat;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cluster bus over UDP multicast. Messages published within a flush interval are packed into as few datagrams as
+ * possible and sent once to the group, which reaches every peer; nodes on the same host share the port, so several
+ * instances on localhost form a cluster. Any host that can reach the group can send to it, so the bus belongs on a
+ * trusted network; setting a shared secret signs every datagram and drops those without a valid signature.
+ */
+public class MulticastClusterBus implements ClusterBus {
+
+    private static Logger log = LoggerFactory.getLogger(MulticastClusterBus.class);
+
+    private static final int MAGIC = 0x52354348; // R5CH
+
+    // stay below the largest UDP payload
+    private static final int MAX_DATAGRAM = 65000;
+
+    // magic and entry count
+    private static final int HEADER_SIZE = 8;
+
+    // origin, sequence, path length and message length
+    private static final int ENTRY_OVERHEAD = 8 + 8 + 2 + 4;
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    // HMAC-SHA256 trailer of signed datagrams
+    private static final int MAC_SIZE = 32;
+
+    private String group = "239.255.27.1";
+
+    private int port = 45588;
+
+    // network interface name, empty picks the first multicast capable interface
+    private String networkInterface = "";
+
+    // milliseconds to wait for more messages before sending a datagram
+    private long flushInterval = 5L;
+
+    // shared by every node to sign datagrams, empty sends and accepts them unsigned
+    private String secret = "";
+
+    private SecretKeySpec key;
+
+    // messages waiting to be sent, new ones are dropped once it is full
+    private LinkedBlockingQueue<ClusterMessage> outbound = new LinkedBlockingQueue<>(8192);
+
+    private final LongAdder published = new LongAdder();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final LongAdder datagramsSent = new LongAdder();
+
+    private final LongAdder sendFailures = new LongAdder();
+
+    private final LongAdder received = new LongAdder();
+
+    // datagrams dropped on receipt as malformed or without a valid signature
+    private final LongAdder malformed = new LongAdder();
+
+    private final LongAdder unauthenticated = new LongAdder();
+
+    private DatagramChannel channel;
+
+    private InetSocketAddress target;
+
+    private Thread sender;
+
+    private Thread receiver;
+
+    @Override
+    public void start(Consumer<ClusterMessage> handler) throws IOException {
+        if (secret.isEmpty()) {
+            log.warn("Cluster bus datagrams are not signed, keep the bus on a trusted network or set a secret");
+            key = null;
+        } else {
+            key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM);
+        }
+        InetAddress groupAddress = InetAddress.getByName(group);
+        NetworkInterface ni = resolveInterface();
+        channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        channel.bind(new InetSocketAddress(port));
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, ni);
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+        channel.join(groupAddress, ni);
+        target = new InetSocketAddress(groupAddress, port);
+        sender = Thread.ofVirtual().name("chat-cluster-sender").start(this::sendLoop);
+        receiver = Thread.ofVirtual().name("chat-cluster-receiver").start(() -> receiveLoop(handler));
+        log.info("Cluster bus joined {}:{} on {}", group, port, ni.getName());
+    }
+
+    private NetworkInterface resolveInterface() throws SocketException {
+        if (!networkInterface.isBlank()) {
+            NetworkInterface ni = NetworkInterface.getByName(networkInterface.trim());
+            if (ni == null) {
+                throw new SocketException("Network interface not found: " + networkInterface);
+            }
+            return ni;
+        }
+        NetworkInterface loopback = null;
+        for (NetworkInterface ni : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (ni.isUp() && ni.supportsMulticast()) {
+                if (!ni.isLoopback()) {
+                    return ni;
+                }
+                loopback = ni;
+            }
+        }
+        if (loopback == null) {
+            loopback = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+        }
+        return loopback;
+    }
+
+    @Override
+    public void publish(ClusterMessage message) {
+        if (outbound.offer(message)) {
+            published.increment();
+        } else {
+            // the sender is not keeping up, peers see a gap rather than this node running out of memory
+            dropped.increment();
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (sender != null) {
+            sender.interrupt();
+        }
+        if (channel != null) {
+            try {
+                // closing unblocks the receiver
+                channel.close();
+            } catch (IOException e) {
+                log.debug("Exception closing cluster channel", e);
+            }
+        }
+        outbound.clear();
+    }
+
+    private void sendLoop() {
+        ByteBuffer buf = ByteBuffer.allocate(MAX_DATAGRAM);
+        Mac mac = newMac();
+        // the signature goes after the entries
+        int limit = mac != null ? MAX_DATAGRAM - MAC_SIZE : MAX_DATAGRAM;
+        ClusterMessage carry = null;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                ClusterMessage next = carry != null ? carry : outbound.take();
+                carry = null;
+                buf.clear().limit(limit);
+                buf.putInt(MAGIC).putInt(0);
+                int count = 0;
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushInterval);
+                while (next != null) {
+                    if (!put(buf, next)) {
+                        if (count == 0) {
+                            dropped.increment();
+                            log.warn("Message too large for the cluster bus, dropped: {}", next);
+                        } else {
+                            // goes first in the next datagram
+                            carry = next;
+                        }
+                        break;
+                    }
+                    count++;
+                    long wait = deadline - System.nanoTime();
+                    next = wait > 0L ? outbound.poll(wait, TimeUnit.NANOSECONDS) : outbound.poll();
+                }
+                if (count > 0) {
+                    buf.putInt(4, count);
+                    if (mac != null) {
+                        mac.update(buf.array(), 0, buf.position());
+                        buf.limit(MAX_DATAGRAM);
+                        buf.put(mac.doFinal());
+                    }
+                    buf.flip();
+                    try {
+                        channel.send(buf, target);
+                        datagramsSent.increment();
+                    } catch (ClosedChannelException e) {
+                        throw e;
+                    } catch (IOException e) {
+                        // a failed datagram is lost, the sender carries on with the next one
+                        sendFailures.increment();
+                        log.warn("Cluster datagram send failed: {}", e.toString());
+                        log.debug("Cluster datagram send failure", e);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedChannelException e) {
+            // stopping
+        }
+    }
+
+    /**
+     * Writes a message into the datagram buffer.
+     * 
+     * @return false if it does not fit, in which case the buffer is unchanged
+     */
+    private static boolean put(ByteBuffer buf, ClusterMessage message) {
+        byte[] path = message.getPath().getBytes(StandardCharsets.UTF_8);
+        byte[] text = message.getMessage().getBytes(StandardCharsets.UTF_8);
+        if (path.length > Short.MAX_VALUE || buf.remaining() < ENTRY_OVERHEAD + path.length + text.length) {
+            return false;
+        }
+        buf.putLong(message.getOrigin()).putLong(message.getSequence());
+        buf.putShort((short) path.length).put(path);
+        buf.putInt(text.length).put(text);
+        return true;
+    }
+
+    private void receiveLoop(Consumer<ClusterMessage> handler) {
+        ByteBuffer buf = ByteBuffer.allocate(MAX_DATAGRAM + 1024);
+        Mac mac = newMac();
+        while (channel.isOpen()) {
+            try {
+                buf.clear();
+                channel.receive(buf);
+                buf.flip();
+                // nothing from a datagram is handed on unless all of it checks out
+                List<ClusterMessage> messages = decode(buf, mac);
+                if (messages == null) {
+                    continue;
+                }
+                for (ClusterMessage message : messages) {
+                    received.increment();
+                    handler.accept(message);
+                }
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (Exception e) {
+                log.warn("Exception receiving cluster datagram", e);
+            }
+        }
+    }
+
+    /**
+     * Verifies and decodes a received datagram.
+     * 
+     * @param buf datagram
+     * @param mac verifies the signature, null when datagrams are not signed
+     * @return messages, or null if the datagram was dropped
+     */
+    private List<ClusterMessage> decode(ByteBuffer buf, Mac mac) {
+        if (mac != null) {
+            int end = buf.limit() - MAC_SIZE;
+            if (end < HEADER_SIZE) {
+                unauthenticated.increment();
+                return null;
+            }
+            mac.update(buf.array(), 0, end);
+            if (!MessageDigest.isEqual(mac.doFinal(), Arrays.copyOfRange(buf.array(), end, buf.limit()))) {
+                unauthenticated.increment();
+                log.debug("Cluster datagram with an invalid signature dropped");
+                return null;
+            }
+            buf.limit(end);
+        }
+        try {
+            if (buf.remaining() < HEADER_SIZE || buf.getInt() != MAGIC) {
+                throw new IllegalArgumentException("Not a cluster datagram");
+            }
+            int count = buf.getInt();
+            if (count < 1 || count > buf.remaining() / ENTRY_OVERHEAD) {
+                throw new IllegalArgumentException("Entry count out of range: " + count);
+            }
+            List<ClusterMessage> messages = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                long origin = buf.getLong();
+                long sequence = buf.getLong();
+                String path = readString(buf, buf.getShort());
+                String message = readString(buf, buf.getInt());
+                messages.add(new ClusterMessage(origin, sequence, path, message));
+            }
+            if (buf.hasRemaining()) {
+                throw new IllegalArgumentException("Trailing bytes after the last entry");
+            }
+            return messages;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            malformed.increment();
+            log.debug("Malformed cluster datagram dropped: {}", e.toString());
+            return null;
+        }
+    }
+
+    private static String readString(ByteBuffer buf, int length) {
+        if (length < 0 || length > buf.remaining()) {
+            throw new IllegalArgumentException("Length out of range: " + length);
+        }
+        String value = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+        buf.position(buf.position() + length);
+        return value;
+    }
+
+    public void setGroup(String group) {
+        this.group = group;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public void setNetworkInterface(String networkInterface) {
+        this.networkInterface = networkInterface;
+    }
+
+    private Mac newMac() {
+        if (key == null) {
+            return null;
+        }
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            // HmacSHA256 is required of every Java platform
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Sets the secret datagrams are signed with; every node of the cluster must use the same one. Empty, the default,
+     * sends and accepts unsigned datagrams.
+     * 
+     * @param secret shared secret
+     */
+    public void setSecret(String secret) {
+        this.secret = secret != null ? secret : "";
+    }
+
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * Sets the most messages waiting to be sent; must be called before the bus is started.
+     * 
+     * @param queueCapacity capacity
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be at least 1");
+        }
+        outbound = new LinkedBlockingQueue<>(queueCapacity);
+    }
+
+    public long getPublished() {
+        return published.sum();
+    }
+
+    @Override
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getDatagramsSent() {
+        return datagramsSent.sum();
+    }
+
+    public long getSendFailures() {
+        return sendFailures.sum();
+    }
+
+    public long getReceived() {
+        return received.sum();
+    }
+
+    public long getMalformed() {
+        return malformed.sum();
+    }
+
+    public long getUnauthenticated() {
+        return unauthenticated.sum();
+    }
+
+    @Override
+    public long getRejected() {
+        return malformed.sum() + unauthenticated.sum();
+    }
+
+}
@@ -0,0 +1,186 @@
+package org.red5.demos.chat;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.red5.net.websocket.WebSocketConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded outbound queue for a single connection, drained asynchronously so a slow client never holds up a broadcast.
+ */
+final class OutboundQueue implements Runnable {
+
+    private static Logger log = LoggerFactory.getLogger(OutboundQueue.class);
+
+    private final WebSocketConnection conn;
+
+    private final ArrayBlockingQueue<ChatFrame> queue;
+
+    private final Executor executor;
+
+    private final ChatMetrics metrics;
+
+    // true when the connection negotiated binary envelopes
+    private final boolean binary;
+
+    // true while a drain task is queued or running
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+
+    // time of the last completed send, or of the moment draining started after the queue was idle
+    private volatile long lastProgress = System.nanoTime();
+
+    private volatile boolean closed;
+
+    // true while a joining connection waits for its replay, frames are queued but not sent
+    private volatile boolean held;
+
+    // replay frame sent ahead of anything queued while held
+    private volatile ChatFrame head;
+
+    // room sequence covered by the replay, queued frames up to it are skipped
+    private volatile long floor;
+
+    OutboundQueue(WebSocketConnection conn, int capacity, Executor executor, ChatMetrics metrics, boolean binary) {
+        this.conn = conn;
+        this.binary = binary;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.executor = executor;
+        this.metrics = metrics;
+    }
+
+    WebSocketConnection getConnection() {
+        return conn;
+    }
+
+    boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Queues a frame for delivery.
+     *
+     * @param frame prepared message frame
+     * @return true if queued, false if the queue is full
+     */
+    boolean offer(ChatFrame frame) {
+        if (closed) {
+            return true;
+        }
+        if (!queue.offer(frame)) {
+            return false;
+        }
+        if (!held) {
+            schedule();
+        }
+        return true;
+    }
+
+    private void schedule() {
+        if (draining.compareAndSet(false, true)) {
+            lastProgress = System.nanoTime();
+            executor.execute(this);
+        }
+    }
+
+    /**
+     * Holds back delivery of queued frames until {@link #release(ChatFrame)} is called.
+     */
+    void hold() {
+        held = true;
+    }
+
+    /**
+     * Resumes delivery; the replay frame, if any, is sent ahead of the frames queued while held, and those it already
+     * covers are skipped.
+     *
+     * @param replay history frame or null
+     */
+    void release(ChatFrame replay) {
+        if (replay != null) {
+            floor = replay.getSequence();
+            head = replay;
+        }
+        held = false;
+        if (head != null || !queue.isEmpty()) {
+            schedule();
+        }
+    }
+
+    /**
+     * Makes space by discarding the oldest pending frame, then queues the given one.
+     *
+     * @param frame prepared message frame
+     * @return number of frames discarded
+     */
+    int coalesce(ChatFrame frame) {
+        int dropped = 0;
+        while (!offer(frame)) {
+            if (queue.poll() != null) {
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Returns how long the head of the queue has been waiting without any send completing.
+     *
+     * @return lag in nanoseconds, zero when nothing is pending
+     */
+    long lagNanos() {
+        return queue.isEmpty() ? 0L : System.nanoTime() - lastProgress;
+    }
+
+    int depth() {
+        return queue.size();
+    }
+
+    void close() {
+        closed = true;
+        queue.clear();
+    }
+
+    @Override
+    public void run() {
+        do {
+            ChatFrame replay = head;
+            if (replay != null && !closed) {
+                head = null;
+                send(replay);
+            }
+            ChatFrame frame;
+            while (!closed && (frame = queue.poll()) != null) {
+                long sequence = frame.getSequence();
+                if (sequence > 0L && sequence <= floor) {
+                    continue;
+                }
+                send(frame);
+            }
+            draining.set(false);
+            // a frame may have been queued after our last poll but before the flag was cleared
+        } while (!closed && !queue.isEmpty() && draining.compareAndSet(false, true));
+    }
+
+    private void send(ChatFrame frame) {
+        try {
+            if (binary) {
+                conn.send(frame.getBinary());
+            } else {
+                conn.send(frame.getText());
+            }
+            metrics.recordOut();
+            // enqueue to completed send, so the time spent waiting here and writing to the client is included
+            if (frame.getEnqueued() != 0L) {
+                metrics.recordDelivery(frame);
+            }
+        } catch (Exception e) {
+            log.warn("Exception sending message", e);
+            metrics.recordSendFailure();
+        }
+        lastProgress = System.nanoTime();
+    }
+
+}
@@ -0,0 +1,17 @@
+package org.red5.demos.chat;
+
+/**
+ * What a router does when a room queue is at capacity.
+ */
+public enum OverflowPolicy {
+
+    /** Evict the oldest queued messages to make space for the new one. */
+    DROP_OLDEST,
+    /** Silently discard the new message. */
+    DROP_NEWEST,
+    /** Discard the new message and send an error frame back to the sender. */
+    REJECT,
+    /** Block the producer for a bounded time, then discard the new message if there is still no space. */
+    BLOCK;
+
+}
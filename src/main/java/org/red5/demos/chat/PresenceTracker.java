@@ -0,0 +1,191 @@
+package org.red5.demos.chat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks the members of each room and pushes presence updates. Joins and leaves are collected over a short window and
+ * sent as one delta per room; rooms above the summary threshold only get their member count, so a mass reconnect
+ * costs one update per room per window instead of one per member per join.
+ */
+final class PresenceTracker {
+
+    private static Logger log = LoggerFactory.getLogger(PresenceTracker.class);
+
+    // receives each presence update along with the room path it is for
+    private final BiConsumer<String, ChatFrame> sink;
+
+    private final ConcurrentMap<String, RoomPresence> rooms = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("chat-presence-timer").factory());
+
+    // milliseconds joins and leaves are collected before an update is sent
+    private final long window;
+
+    // rooms with more members than this only get counts
+    private final int summaryThreshold;
+
+    private final LongAdder updates = new LongAdder();
+
+    PresenceTracker(BiConsumer<String, ChatFrame> sink, long window, int summaryThreshold) {
+        this.sink = sink;
+        this.window = window;
+        this.summaryThreshold = summaryThreshold;
+    }
+
+    /**
+     * Adds a member to a room.
+     *
+     * @param path room path
+     * @param id member id
+     * @return roster frame for the joining member, listing the members unless the room is over the summary threshold
+     */
+    ChatFrame join(String path, long id) {
+        List<Long> members = new ArrayList<>();
+        int[] count = new int[1];
+        rooms.compute(path, (k, room) -> {
+            if (room == null) {
+                room = new RoomPresence();
+            }
+            room.members.add(id);
+            // a leave followed by a join within the window cancels out
+            if (!room.left.remove(id)) {
+                room.joined.add(id);
+            }
+            count[0] = room.members.size();
+            if (count[0] <= summaryThreshold) {
+                members.addAll(room.members);
+            }
+            schedule(path, room);
+            return room;
+        });
+        return ChatFrame.of(path, 0L, ChatCodec.encodeRoster(path, count[0], members));
+    }
+
+    /**
+     * Removes a member from a room.
+     *
+     * @param path room path
+     * @param id member id
+     */
+    void leave(String path, long id) {
+        rooms.computeIfPresent(path, (k, room) -> {
+            if (room.members.remove(id)) {
+                if (!room.joined.remove(id)) {
+                    room.left.add(id);
+                }
+                schedule(path, room);
+            }
+            return room;
+        });
+    }
+
+    private void schedule(String path, RoomPresence room) {
+        if (!room.scheduled) {
+            try {
+                timer.schedule(() -> flush(path), window, TimeUnit.MILLISECONDS);
+                room.scheduled = true;
+            } catch (RejectedExecutionException e) {
+                // stopped, nobody is left to send the update to
+                log.debug("Presence update dropped after stop for path: {}", path);
+            }
+        }
+    }
+
+    /**
+     * Sends the changes collected for a room over the last window, and forgets the room once it is empty.
+     */
+    private void flush(String path) {
+        List<Long> joined = new ArrayList<>();
+        List<Long> left = new ArrayList<>();
+        int[] count = new int[] { -1 };
+        rooms.computeIfPresent(path, (k, room) -> {
+            room.scheduled = false;
+            if (room.joined.isEmpty() && room.left.isEmpty()) {
+                return room.members.isEmpty() ? null : room;
+            }
+            count[0] = room.members.size();
+            if (count[0] <= summaryThreshold) {
+                joined.addAll(room.joined);
+                left.addAll(room.left);
+            }
+            room.joined.clear();
+            room.left.clear();
+            return room.members.isEmpty() ? null : room;
+        });
+        if (count[0] >= 0) {
+            try {
+                sink.accept(path, ChatFrame.of(path, 0L, ChatCodec.encodePresence(path, count[0], joined, left)));
+                updates.increment();
+            } catch (Exception e) {
+                log.warn("Exception sending presence update on {}", path, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the members of a room.
+     *
+     * @param path room path
+     * @return member ids
+     */
+    Set<Long> getMembers(String path) {
+        Set<Long> members = new HashSet<>();
+        rooms.computeIfPresent(path, (k, room) -> {
+            members.addAll(room.members);
+            return room;
+        });
+        return Collections.unmodifiableSet(members);
+    }
+
+    int getCount(String path) {
+        int[] count = new int[1];
+        rooms.computeIfPresent(path, (k, room) -> {
+            count[0] = room.members.size();
+            return room;
+        });
+        return count[0];
+    }
+
+    long getUpdates() {
+        return updates.sum();
+    }
+
+    void stop() {
+        timer.shutdownNow();
+        rooms.clear();
+    }
+
+    /**
+     * Presence state of a room; only touched within the compute calls on its map entry.
+     */
+    private static final class RoomPresence {
+
+        final Set<Long> members = new HashSet<>();
+
+        // changes since the last update, in arrival order
+        final Set<Long> joined = new LinkedHashSet<>();
+
+        final Set<Long> left = new LinkedHashSet<>();
+
+        // true while a flush is pending for the room
+        boolean scheduled;
+
+    }
+
+}
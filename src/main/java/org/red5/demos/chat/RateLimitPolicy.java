@@ -0,0 +1,13 @@
+package org.red5.demos.chat;
+
+/**
+ * What a listener does with a connection that keeps exceeding its message rate.
+ */
+public enum RateLimitPolicy {
+
+    /** Drop everything the connection sends for the throttle time. */
+    THROTTLE,
+    /** Close the connection. */
+    DISCONNECT;
+
+}
@@ -0,0 +1,207 @@
+package org.red5.demos.chat;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Routing state for a single chat room; the room is pinned to one shard which drains its queue in order.
+ */
+final class Room {
+
+    private final String path;
+
+    private final ArrayBlockingQueue<Envelope> queue;
+
+    // taken by producers while they sequence and queue a message; a lock rather than the monitor, so a producer waiting
+    // on it or for space does not pin a virtual thread to its carrier
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notFull = lock.newCondition();
+
+    // producers waiting for space, the shard only signals when there are any
+    private final AtomicInteger spaceWaiters = new AtomicInteger();
+
+    // true while the room sits in its shard's ready queue or is being drained
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    // true when messages are collected over a window and delivered as one combined frame
+    private volatile boolean batching;
+
+    // true while a batch window timer is pending for this room
+    private final AtomicBoolean windowOpen = new AtomicBoolean(false);
+
+    // System.currentTimeMillis() of the last routed message
+    private volatile long lastActivity = System.currentTimeMillis();
+
+    // recent messages for replay to joining clients, created on first delivery and dropped when the room goes idle
+    private volatile RoomHistory history;
+
+    // sequence of the last message accepted on the room, guarded by the room lock
+    private long sequence;
+
+    // persistent log of the room, null when logging is off
+    private volatile RoomLog roomLog;
+
+    Room(String path, int capacity) {
+        this.path = path;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    boolean offer(Envelope envelope) {
+        return queue.offer(envelope);
+    }
+
+    Envelope poll() {
+        Envelope envelope = queue.poll();
+        if (envelope != null && spaceWaiters.get() > 0) {
+            lock.lock();
+            try {
+                notFull.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return envelope;
+    }
+
+    int remainingCapacity() {
+        return queue.remainingCapacity();
+    }
+
+    void lock() {
+        lock.lock();
+    }
+
+    boolean tryLock(long timeout, TimeUnit unit) throws InterruptedException {
+        return lock.tryLock(timeout, unit);
+    }
+
+    void unlock() {
+        lock.unlock();
+    }
+
+    /**
+     * Waits for space in the queue; called holding the room lock, which is released while waiting.
+     *
+     * @param deadline System.nanoTime() to give up at
+     * @return true if there is space
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean awaitSpace(long deadline) throws InterruptedException {
+        // registered before the check so a poll racing with it either frees the space we see or signals us
+        spaceWaiters.incrementAndGet();
+        try {
+            while (queue.remainingCapacity() == 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0L) {
+                    return false;
+                }
+                notFull.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            spaceWaiters.decrementAndGet();
+        }
+    }
+
+    boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    int size() {
+        return queue.size();
+    }
+
+    void clear() {
+        queue.clear();
+    }
+
+    /**
+     * Marks the room as scheduled for draining.
+     *
+     * @return true if the caller won the race and must hand the room to its shard
+     */
+    boolean markScheduled() {
+        return scheduled.compareAndSet(false, true);
+    }
+
+    void clearScheduled() {
+        scheduled.set(false);
+    }
+
+    boolean isBatching() {
+        return batching;
+    }
+
+    void setBatching(boolean batching) {
+        this.batching = batching;
+    }
+
+    /**
+     * Opens a batch window for the room.
+     *
+     * @return true if the caller opened the window and must arrange for it to be flushed
+     */
+    boolean openWindow() {
+        return windowOpen.compareAndSet(false, true);
+    }
+
+    void closeWindow() {
+        windowOpen.set(false);
+    }
+
+    /**
+     * Returns whether the room has nothing queued, scheduled or waiting on a batch window.
+     *
+     * @return true if idle
+     */
+    boolean isIdle() {
+        return queue.isEmpty() && !scheduled.get() && !windowOpen.get();
+    }
+
+    long getLastActivity() {
+        return lastActivity;
+    }
+
+    void touch() {
+        lastActivity = System.currentTimeMillis();
+    }
+
+    RoomHistory getHistory() {
+        return history;
+    }
+
+    void setHistory(RoomHistory history) {
+        this.history = history;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    RoomLog getRoomLog() {
+        return roomLog;
+    }
+
+    void setRoomLog(RoomLog roomLog) {
+        this.roomLog = roomLog;
+    }
+
+    @Override
+    public String toString() {
+        return "Room [path=" + path + ", size=" + queue.size() + "]";
+    }
+
+}
@@ -0,0 +1,83 @@
+package org.red5.demos.chat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ring buffer of the most recent messages delivered in a room, bounded by message count and encoded size.
+ */
+final class RoomHistory {
+
+    private final String[] ring;
+
+    private final int[] sizes;
+
+    private final long maxBytes;
+
+    // index of the oldest entry
+    private int head;
+
+    private int count;
+
+    private long bytes;
+
+    // room sequence of the last message added, including any too large to keep
+    private long lastSequence;
+
+    RoomHistory(int maxMessages, long maxBytes) {
+        this.ring = new String[maxMessages];
+        this.sizes = new int[maxMessages];
+        this.maxBytes = maxBytes;
+    }
+
+    synchronized void add(String message, long sequence) {
+        lastSequence = sequence;
+        int size = ChatCodec.utf8Length(message);
+        if (size > maxBytes) {
+            // never keep a message that would push everything else out on its own
+            return;
+        }
+        if (count == ring.length) {
+            removeOldest();
+        }
+        while (count > 0 && bytes + size > maxBytes) {
+            removeOldest();
+        }
+        int tail = (head + count) % ring.length;
+        ring[tail] = message;
+        sizes[tail] = size;
+        bytes += size;
+        count++;
+    }
+
+    private void removeOldest() {
+        bytes -= sizes[head];
+        ring[head] = null;
+        head = (head + 1) % ring.length;
+        count--;
+    }
+
+    /**
+     * Returns up to the given number of the most recent messages, oldest first.
+     *
+     * @param limit maximum messages
+     * @return messages
+     */
+    synchronized List<String> recent(int limit) {
+        int n = Math.min(limit, count);
+        List<String> messages = new ArrayList<>(n);
+        for (int i = count - n; i < count; i++) {
+            messages.add(ring[(head + i) % ring.length]);
+        }
+        return messages;
+    }
+
+    synchronized int size() {
+        return count;
+    }
+
+    synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+}
@@ -0,0 +1,292 @@
+package org.red5.demos.chat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The segmented log of a single room. Offsets start at 1 and increase by one per message; the delivered checkpoint
+ * records the last offset handed to the room's subscribers.
+ */
+final class RoomLog {
+
+    private static Logger log = LoggerFactory.getLogger(RoomLog.class);
+
+    private static final String CHECKPOINT = "checkpoint";
+
+    // the checkpoint is written here first and then moved over the checkpoint, so a crash never leaves it cut short
+    private static final String CHECKPOINT_TEMP = "checkpoint.tmp";
+
+    private final String path;
+
+    private final Path dir;
+
+    private final int segmentSize;
+
+    // oldest first, the last one is written to
+    private final List<LogSegment> segments = new ArrayList<>();
+
+    // mapped ahead by the flusher, so a full segment rolls over without creating a file under the producer locks
+    private LogSegment spare;
+
+    private volatile long delivered;
+
+    // guarded by checkpointLock, the flusher and a release may save the checkpoint at the same time
+    private long savedDelivered;
+
+    private final Object checkpointLock = new Object();
+
+    // set once the log is released or stopped, its segments are unmapped by then; guarded by the log
+    private boolean closed;
+
+    private RoomLog(String path, Path dir, int segmentSize) {
+        this.path = path;
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Opens the log of a room, recovering existing segments and the delivered checkpoint.
+     *
+     * @param path room path
+     * @param dir room log directory
+     * @param segmentSize mapped size of new segments
+     * @return room log
+     * @throws IOException on file errors
+     */
+    static RoomLog open(String path, Path dir, int segmentSize) throws IOException {
+        Files.createDirectories(dir);
+        RoomLog roomLog = new RoomLog(path, dir, segmentSize);
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.log")) {
+            stream.forEach(files::add);
+        }
+        files.sort(Comparator.comparingLong(LogSegment::parseBaseOffset));
+        for (Path file : files) {
+            roomLog.segments.add(LogSegment.open(dir, LogSegment.parseBaseOffset(file), segmentSize));
+        }
+        // a spare left from the last run is mapped again when needed
+        Files.deleteIfExists(dir.resolve(LogSegment.SPARE));
+        if (roomLog.segments.isEmpty()) {
+            roomLog.segments.add(LogSegment.open(dir, 1L, segmentSize));
+        }
+        Path checkpoint = dir.resolve(CHECKPOINT);
+        if (Files.exists(checkpoint)) {
+            try {
+                roomLog.delivered = Long.parseLong(Files.readString(checkpoint, StandardCharsets.UTF_8).trim());
+            } catch (NumberFormatException e) {
+                log.warn("Invalid checkpoint for {}, replaying the whole log", path);
+            }
+        }
+        roomLog.savedDelivered = roomLog.delivered;
+        return roomLog;
+    }
+
+    /**
+     * Appends a message, rolling to a new segment when the current one is full.
+     *
+     * @param message message
+     * @return offset of the message, or zero if it is empty or too large for a segment
+     * @throws IOException if a new segment cannot be created
+     */
+    synchronized long append(String message) throws IOException {
+        if (closed) {
+            throw new IOException("Room log is closed: " + path);
+        }
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length == 0 || bytes.length + LogSegment.RECORD_OVERHEAD > segmentSize) {
+            return 0L;
+        }
+        long timestamp = System.currentTimeMillis();
+        LogSegment active = active();
+        if (!active.append(bytes, timestamp)) {
+            LogSegment next = spare;
+            spare = null;
+            // only opened here when the flusher has not prepared a spare in time
+            active = next != null ? next.assign(active.getNextOffset()) : LogSegment.open(dir, active.getNextOffset(), segmentSize);
+            segments.add(active);
+            active.append(bytes, timestamp);
+        }
+        return active.getNextOffset() - 1L;
+    }
+
+    private LogSegment active() {
+        return segments.get(segments.size() - 1);
+    }
+
+    /**
+     * Reads messages after an offset.
+     *
+     * @param after offset to read after
+     * @param max maximum messages
+     * @return messages in offset order
+     */
+    synchronized List<String> read(long after, int max) {
+        List<String> messages = new ArrayList<>();
+        if (closed) {
+            return messages;
+        }
+        long offset = Math.max(after + 1L, getFirstOffset());
+        for (LogSegment segment : segments) {
+            while (messages.size() < max && offset < segment.getNextOffset()) {
+                if (offset >= segment.getBaseOffset()) {
+                    messages.add(segment.read(offset));
+                }
+                offset++;
+            }
+        }
+        return messages;
+    }
+
+    synchronized long getFirstOffset() {
+        return segments.get(0).getBaseOffset();
+    }
+
+    synchronized long getNextOffset() {
+        return active().getNextOffset();
+    }
+
+    long getDelivered() {
+        return delivered;
+    }
+
+    void setDelivered(long delivered) {
+        this.delivered = delivered;
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    /**
+     * Forces written records to storage and saves the delivered checkpoint if it moved.
+     */
+    void flush() {
+        List<LogSegment> dirty;
+        synchronized (this) {
+            dirty = new ArrayList<>();
+            for (LogSegment segment : segments) {
+                if (segment.isDirty()) {
+                    dirty.add(segment);
+                }
+            }
+        }
+        dirty.forEach(LogSegment::force);
+        synchronized (checkpointLock) {
+            saveCheckpoint();
+        }
+    }
+
+    private void saveCheckpoint() {
+        long current = delivered;
+        if (current != savedDelivered) {
+            try {
+                Path temp = dir.resolve(CHECKPOINT_TEMP);
+                Files.writeString(temp, Long.toString(current), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, StandardOpenOption.SYNC);
+                Files.move(temp, dir.resolve(CHECKPOINT), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                savedDelivered = current;
+            } catch (IOException e) {
+                log.warn("Checkpoint write failed for {}", path, e);
+            }
+        }
+    }
+
+    /**
+     * Maps a spare segment once the segment being written is half full; called from the flusher, the file is created
+     * outside the log lock.
+     */
+    void prepare() {
+        synchronized (this) {
+            if (closed || spare != null || active().getLength() < segmentSize / 2) {
+                return;
+            }
+        }
+        LogSegment next;
+        try {
+            next = LogSegment.allocate(dir, segmentSize);
+        } catch (IOException e) {
+            log.warn("Spare segment allocation failed for {}", path, e);
+            return;
+        }
+        synchronized (this) {
+            if (!closed && spare == null) {
+                spare = next;
+                return;
+            }
+        }
+        discard(next);
+    }
+
+    /**
+     * Forces what was written, saves the checkpoint and unmaps every segment; the files stay on disk.
+     */
+    void close() {
+        flush();
+        LogSegment unused;
+        synchronized (this) {
+            closed = true;
+            segments.forEach(LogSegment::close);
+            unused = spare;
+            spare = null;
+        }
+        if (unused != null) {
+            discard(unused);
+        }
+    }
+
+    private void discard(LogSegment segment) {
+        try {
+            segment.delete();
+        } catch (IOException e) {
+            log.warn("Spare segment delete failed for {}", path, e);
+        }
+    }
+
+    /**
+     * Deletes closed segments older than the retention time, then the oldest closed segments while the log is over
+     * the retention size; the segment being written is always kept.
+     *
+     * @param oldest timestamp before which segments expire
+     * @param maxBytes retention size
+     */
+    void retain(long oldest, long maxBytes) {
+        // the expired segments are taken out under the lock, appends and reads never wait on the file deletes
+        List<LogSegment> expired = new ArrayList<>();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            // counted by what was written, an open segment is mapped at full size long before it fills up
+            long total = 0L;
+            for (LogSegment segment : segments) {
+                total += segment.getLength();
+            }
+            while (segments.size() > 1) {
+                LogSegment first = segments.get(0);
+                if (first.getLastTimestamp() >= oldest && total <= maxBytes) {
+                    break;
+                }
+                expired.add(segments.remove(0));
+                total -= first.getLength();
+            }
+        }
+        for (LogSegment segment : expired) {
+            try {
+                segment.delete();
+            } catch (IOException e) {
+                log.warn("Segment delete failed: {}", segment, e);
+            }
+        }
+    }
+
+}
@@ -1,8 +1,24 @@
 package org.red5.demos.chat;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
 import org.red5.server.adapter.ApplicationLifecycle;
 import org.red5.server.api.scope.IScope;
@@ -20,24 +36,120 @@ public class Router {
 
     private static Logger log = LoggerFactory.getLogger(Router.class);
 
+    // milliseconds between housekeeping sweeps
+    private static final long SWEEP_INTERVAL = 30000L;
+
+    // milliseconds without messages from a peer node before its duplicate filter is dropped
+    private static final long PEER_IDLE = 10 * 60 * 1000L;
+
     private Application app;
 
+    private IScope appScope;
+
     private WebSocketChatDataListener wsListener;
 
     private SSEService sseService;
 
-    // messages are stored in a concurrent map to allow for thread-safe access
-    // this is not strictly necessary for the router, but it can be useful if you want
-    // entries are keyed by the path and the value is the message queue
-    private ConcurrentMap<String, LinkedTransferQueue<String>> messages = new ConcurrentHashMap<>();
+    // finds the scope SSE frames for a path are broadcast to, resolved from the application scope when not set
+    private Function<String, IScope> scopeResolver;
+
+    // SSE delivery stage, running while the router is started and an SSE service is available
+    private volatile SseBridge sseBridge;
+
+    // most frames waiting for SSE delivery, the oldest are dropped beyond it
+    private int sseQueueCapacity = 4096;
+
+    // rooms are stored in a concurrent map to allow for thread-safe access
+    // entries are keyed by the path and the value holds the message queue for the path
+    private ConcurrentMap<String, Room> rooms = new ConcurrentHashMap<>();
+
+    // number of routing shards, zero or less means one per available core
+    private int shardCount;
+
+    private volatile RouterShard[] shards;
+
+    // maximum queued messages per room
+    private int roomCapacity = 1024;
+
+    // what to do with a message when its room queue is full
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+    // how long a producer may wait for space under the BLOCK policy
+    private long blockTimeout = 50L;
+
+    // overflow counters, one per policy outcome
+    private final LongAdder droppedOldest = new LongAdder();
+
+    private final LongAdder droppedNewest = new LongAdder();
+
+    private final LongAdder rejected = new LongAdder();
+
+    private final LongAdder blocked = new LongAdder();
+
+    private final LongAdder blockTimeouts = new LongAdder();
+
+    // messages refused because the room log could not take them
+    private final LongAdder logFailures = new LongAdder();
+
+    // paths whose messages are batched, applied to rooms as they are created
+    private Set<String> batchedPaths = ConcurrentHashMap.newKeySet();
+
+    // how long a batch window stays open, in milliseconds
+    private long batchWindow = 10L;
+
+    // maximum messages in a batch, reaching it flushes the window early
+    private int batchSize = 32;
+
+    // messages kept per room for replay to joining clients, zero disables history
+    private int historySize = 50;
+
+    // encoded bytes kept per room for replay
+    private long historyBytes = 64 * 1024L;
+
+    // milliseconds without traffic after which a room's history is dropped
+    private long historyIdle = 10 * 60 * 1000L;
+
+    // most rooms holding history at once, the least recently active are dropped first
+    private int historyMaxRooms = 10000;
+
+    // milliseconds an empty room without members or traffic is kept before it is reclaimed
+    private long roomIdle = 5 * 60 * 1000L;
 
-    private Thread routeFuture;
+    private final LongAdder roomsReclaimed = new LongAdder();
+
+    // flushes batch windows once they expire and runs the housekeeping sweep
+    private volatile ScheduledExecutorService timer;
+
+    private final ChatMetrics metrics = new ChatMetrics();
+
+    // optional bus to peer nodes
+    private ClusterBus clusterBus;
+
+    // identifies this node on the cluster bus, a new one per run so a restarted node starts a fresh sequence
+    private final long nodeId = ThreadLocalRandom.current().nextLong();
+
+    private final AtomicLong clusterSequence = new AtomicLong();
+
+    // duplicate filter per peer node, dropped once the peer goes quiet
+    private ConcurrentMap<Long, Peer> peers = new ConcurrentHashMap<>();
+
+    private final LongAdder clusterDuplicates = new LongAdder();
+
+    // peer messages refused by the inbound checks or the room rate limit
+    private final LongAdder clusterRejected = new LongAdder();
+
+    // optional persistent log, rooms resume from it after a restart
+    private MessageLog messageLog;
+
+    // optional shared object router, delivered messages are mirrored to the room shared objects
+    private SharedObjectRouter sharedObjectRouter;
 
     /**
      * Default constructor.
      */
     public Router() {
         log.debug("Router initialized");
+        metrics.setRouter(this);
     }
 
     /**
@@ -45,14 +157,309 @@ public class Router {
      * 
      * @param path shared object path / name
      * @param message string
+     * @return true if the message was queued and false if it was discarded by the overflow policy
      */
-    public void route(String path, String message) {
+    public boolean route(String path, String message) {
         log.debug("Route to WebSocket: {} with {}", path, message);
-        // ensure the message queue exists for the path
-        if (messages.computeIfAbsent(path, k -> new LinkedTransferQueue<>()).offer(message)) {
-            log.debug("Message added to new queue for path: {}", path);
-        } else if (messages.get(path).offer(message)) {
-            log.debug("Message added to existing queue for path: {}", path);
+        return ingest(path, message, false);
+    }
+
+    /**
+     * Routes a message written to a room shared object by an RTMP client; it is delivered to the WebSocket and SSE
+     * subscribers of the room but not written back to the shared object.
+     * 
+     * @param path room path
+     * @param message string
+     * @return true if the message was queued
+     */
+    boolean routeShared(String path, String message) {
+        log.debug("Route from Shared Object: {} with {}", path, message);
+        return ingest(path, message, true);
+    }
+
+    private boolean ingest(String path, String message, boolean shared) {
+        if (!enqueue(path, message, shared)) {
+            return false;
+        }
+        ClusterBus bus = clusterBus;
+        if (bus != null) {
+            bus.publish(new ClusterMessage(nodeId, clusterSequence.incrementAndGet(), path, message));
+        }
+        return true;
+    }
+
+    /**
+     * Routes a message received from a peer node to the local connections, unless it is one of ours or a duplicate.
+     * 
+     * @param message cluster message
+     */
+    void routeRemote(ClusterMessage message) {
+        if (message.getOrigin() == nodeId) {
+            return;
+        }
+        Peer peer = peers.computeIfAbsent(message.getOrigin(), k -> new Peer());
+        peer.lastSeen = System.currentTimeMillis();
+        if (!peer.window.accept(message.getSequence())) {
+            clusterDuplicates.increment();
+            return;
+        }
+        // peers are held to the same checks as local WebSocket frames
+        String path = message.getPath();
+        String text = message.getMessage().trim();
+        if (!isRemoteRoutable(path, text)) {
+            clusterRejected.increment();
+            log.debug("Invalid message from peer dropped: {}", message);
+            return;
+        }
+        WebSocketChatDataListener listener = wsListener;
+        if (listener != null && !listener.allowRoom(path)) {
+            clusterRejected.increment();
+            return;
+        }
+        log.trace("Route from peer: {}", message);
+        enqueue(path, text, false);
+    }
+
+    /**
+     * Checks a peer message the way an inbound WebSocket frame is checked: a non-empty message, a valid JSON object if
+     * it looks like one and no control requests, on a path within this application.
+     */
+    private boolean isRemoteRoutable(String path, String text) {
+        if (text.isEmpty() || path.isEmpty() || path.charAt(0) != '/') {
+            return false;
+        }
+        IScope scope = appScope;
+        if (scope != null) {
+            String contextPath = scope.getContextPath();
+            if (!path.equals(contextPath) && !path.startsWith(contextPath + "/")) {
+                return false;
+            }
+        }
+        if (ChatCodec.isJsonEnvelope(text)) {
+            return ChatCodec.isValidJsonObject(text) && ChatCodec.parseReplayFrom(text) < 0L;
+        }
+        return true;
+    }
+
+    /**
+     * Queues a message on the room for a path and wakes the shard owning the room.
+     * 
+     * @param path room path
+     * @param message string
+     * @param shared true if the message came from the room shared object
+     * @return true if the message was queued
+     */
+    private boolean enqueue(String path, String message, boolean shared) {
+        // ensure the room exists for the path
+        Room room = rooms.computeIfAbsent(path, this::createRoom);
+        boolean admitted = false;
+        // rooms admit one message at a time so sequences and log offsets follow the queue order; under the BLOCK policy
+        // the wait for the lock and for space together stay within the block timeout
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(blockTimeout);
+        try {
+            if (overflowPolicy != OverflowPolicy.BLOCK) {
+                room.lock();
+            } else if (!room.tryLock(blockTimeout, TimeUnit.MILLISECONDS)) {
+                blocked.increment();
+                blockTimeouts.increment();
+                log.debug("Message discarded waiting on the room lock for path: {}", path);
+                return false;
+            }
+            try {
+                // a discarded message does not use up a sequence
+                if (reserve(room, deadline)) {
+                    // the log is gone if the room was reclaimed since it was looked up
+                    RoomLog roomLog = room.getRoomLog();
+                    // appended once the message is sure to be queued
+                    long offset = roomLog != null ? append(roomLog, message) : 0L;
+                    if (roomLog != null && offset == 0L) {
+                        // refused rather than queued unlogged, so room sequences and log offsets stay the same numbers
+                        logFailures.increment();
+                    } else {
+                        long sequence = room.getSequence() + 1L;
+                        // space was reserved above and only the shard takes from the queue meanwhile, so this cannot fail
+                        room.offer(new Envelope(message, sequence, offset, shared));
+                        room.setSequence(sequence);
+                        admitted = true;
+                    }
+                }
+            } finally {
+                room.unlock();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!admitted) {
+            log.debug("Message discarded for path: {} policy: {}", path, overflowPolicy);
+            return false;
+        }
+        metrics.recordIn();
+        room.touch();
+        log.trace("Message added to queue for path: {}", path);
+        // wake the shard that owns the room
+        RouterShard[] shards = this.shards;
+        if (shards != null) {
+            RouterShard shard = shardFor(path, shards);
+            if (!room.isBatching() || room.size() >= batchSize) {
+                shard.schedule(room);
+            } else if (room.openWindow()) {
+                // first message of a window, flush the room once the window expires
+                try {
+                    timer.schedule(() -> shard.schedule(room), batchWindow, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // the timer stopped under us, so flush right away rather than fail the route
+                    shard.schedule(room);
+                }
+            }
+        }
+        return true;
+    }
+
+    private Room createRoom(String path) {
+        Room room = new Room(path, roomCapacity);
+        room.setBatching(batchedPaths.contains(path));
+        if (messageLog != null && messageLog.isRunning()) {
+            openLog(room);
+        }
+        return room;
+    }
+
+    private void openLog(Room room) {
+        try {
+            RoomLog roomLog = messageLog.getRoomLog(room.getPath());
+            room.setRoomLog(roomLog);
+            // continue from the log so sequences keep increasing across restarts
+            room.setSequence(Math.max(room.getSequence(), roomLog.getNextOffset() - 1L));
+        } catch (UncheckedIOException e) {
+            log.warn("Message log unavailable for path: {}", room.getPath(), e);
+        }
+    }
+
+    /**
+     * Appends an admitted message to the room log; the write only reaches the mapped segment, the message log forces
+     * it to storage with the next group commit.
+     * 
+     * @param roomLog room log
+     * @param message string
+     * @return offset of the message, zero if it was not logged
+     */
+    private long append(RoomLog roomLog, String message) {
+        try {
+            long offset = roomLog.append(message);
+            if (offset == 0L) {
+                log.warn("Message refused on {}, it does not fit in a segment", roomLog.getPath());
+            }
+            return offset;
+        } catch (IOException e) {
+            log.warn("Message log append failed on {}, message refused", roomLog.getPath(), e);
+            return 0L;
+        }
+    }
+
+    /**
+     * Reopens the room logs after a restart: history is seeded from delivered messages and anything accepted but not
+     * delivered before the restart is queued again, up to the room capacity.
+     */
+    private void recover() {
+        int pending = 0;
+        for (String path : messageLog.getPaths()) {
+            Room room = rooms.computeIfAbsent(path, this::createRoom);
+            RoomLog roomLog = room.getRoomLog();
+            if (roomLog == null) {
+                continue;
+            }
+            long first = roomLog.getFirstOffset() - 1L;
+            long delivered = roomLog.getDelivered();
+            if (historySize > 0 && delivered > first) {
+                long after = Math.max(delivered - historySize, first);
+                RoomHistory history = new RoomHistory(historySize, historyBytes);
+                long sequence = after;
+                for (String message : roomLog.read(after, (int) (delivered - after))) {
+                    history.add(message, ++sequence);
+                }
+                room.setHistory(history);
+            }
+            long offset = Math.max(Math.max(delivered, roomLog.getNextOffset() - 1L - roomCapacity), first);
+            room.lock();
+            try {
+                for (String message : roomLog.read(offset, roomCapacity)) {
+                    offset++;
+                    room.offer(new Envelope(message, offset, offset));
+                    pending++;
+                }
+            } finally {
+                room.unlock();
+            }
+        }
+        log.info("Recovered {} room logs with {} undelivered messages", messageLog.getPaths().size(), pending);
+    }
+
+    /**
+     * Switches batching on or off for a room scope; batched rooms collect messages over the batch window and deliver
+     * them as one batch envelope frame or SSE event.
+     * 
+     * @param path room path
+     * @param enabled true to batch
+     */
+    public void setBatching(String path, boolean enabled) {
+        if (enabled) {
+            batchedPaths.add(path);
+        } else {
+            batchedPaths.remove(path);
+        }
+        Room room = rooms.get(path);
+        if (room != null) {
+            room.setBatching(enabled);
+            // anything waiting on a window is delivered right away once batching is off
+            RouterShard[] shards = this.shards;
+            if (!enabled && shards != null && !room.isEmpty()) {
+                shardFor(path, shards).schedule(room);
+            }
+        }
+    }
+
+    public boolean isBatching(String path) {
+        return batchedPaths.contains(path);
+    }
+
+    /**
+     * Makes space for one message in a room queue, applying the overflow policy if the queue is full; called holding the
+     * room lock.
+     * 
+     * @param room target room
+     * @param deadline System.nanoTime() a blocked producer gives up at
+     * @return true if the message may be queued
+     * @throws InterruptedException if interrupted while blocked
+     */
+    private boolean reserve(Room room, long deadline) throws InterruptedException {
+        if (room.remainingCapacity() > 0) {
+            return true;
+        }
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                // evict from the head until the new message fits
+                do {
+                    if (room.poll() != null) {
+                        droppedOldest.increment();
+                    }
+                } while (room.remainingCapacity() == 0);
+                return true;
+            case DROP_NEWEST:
+                droppedNewest.increment();
+                return false;
+            case REJECT:
+                rejected.increment();
+                return false;
+            case BLOCK:
+                blocked.increment();
+                // the room lock is released while waiting, so other producers are not held up behind this one
+                if (room.awaitSpace(deadline)) {
+                    return true;
+                }
+                blockTimeouts.increment();
+                return false;
+            default:
+                return false;
         }
     }
 
@@ -63,105 +470,682 @@ public class Router {
      * @param message string
      */
     public void route(IScope scope, String message) {
+        route(scope, ChatFrame.of(message));
+    }
+
+    /**
+     * Routes a prepared frame on a given scope to the associated websocket connections.
+     * 
+     * @param scope application or room scope
+     * @param frame prepared message frame
+     */
+    public void route(IScope scope, ChatFrame frame) {
         // scope.path = /default scope.name = chat
         String path = scope.getContextPath();
-        log.debug("Route to WebSocket: {} with {}", path, message);
-        if (messages.get(path) == null) {
+        log.debug("Route to WebSocket: {} with {}", path, frame);
+        if (rooms.get(path) == null) {
             log.warn("Message queue for path: {} did not exist", path);
         }
         if (wsListener != null) {
-            wsListener.sendToAll(scope.getContextPath(), message);
+            wsListener.sendToAll(path, frame);
         }
-        if (sseService != null) {
-            sseService.broadcastToScope(scope, message);
+        SseBridge bridge = sseBridge;
+        if (bridge != null) {
+            bridge.offer(scope, frame);
         }
     }
 
     /**
-     * Get the chat shared object for a given path.
+     * Delivers a message taken from a room queue; called from the shard owning the room.
      * 
-     * @param path path / name
-     * @return the message queue for the path or null if its not available
+     * @param room source room
+     * @param sequence room sequence of the message, or of the last message in a batch
+     * @param message string
+     * @param enqueued enqueue time of the message, or of the first message in a batch
      */
-    private LinkedTransferQueue<String> getMessageQueue(String path) {
-        // get the application level scope
-        IScope appScope = app.getScope();
-        // resolve the path given to an existing scope
-        IScope scope = ScopeUtils.resolveScope(appScope, path);
-        if (scope == null) {
-            // attempt to create the missing scope for the given path
-            if (!appScope.createChildScope(path)) {
-                log.warn("Scope creation failed for {}", path);
-                return null;
+    void deliver(Room room, long sequence, String message, long enqueued) {
+        log.trace("Routing message: {} on {}", message, room.getPath());
+        // prepare the frame once, all recipients share it
+        ChatFrame frame = ChatFrame.of(room.getPath(), sequence, message, enqueued);
+        if (wsListener != null) {
+            wsListener.sendToAll(room.getPath(), frame);
+        }
+        // SSE subscribers of the room scope are served from their own stage
+        SseBridge bridge = sseBridge;
+        if (bridge != null) {
+            bridge.offer(room.getPath(), frame);
+        }
+    }
+
+    /**
+     * Adds a message to the room history ahead of its delivery, so a client joining meanwhile finds it either in its
+     * replay or in a later live frame; called from the shard owning the room.
+     * 
+     * @param room source room
+     * @param envelope message about to be delivered
+     */
+    void record(Room room, Envelope envelope) {
+        RoomHistory history = historyFor(room);
+        if (history != null) {
+            history.add(envelope.getMessage(), envelope.getSequence());
+        }
+    }
+
+    /**
+     * Adds a batch to the room history in one step, so a replay never covers only part of it.
+     * 
+     * @param room source room
+     * @param envelopes messages about to be delivered
+     * @param count number of messages
+     */
+    void record(Room room, Envelope[] envelopes, int count) {
+        RoomHistory history = historyFor(room);
+        if (history != null) {
+            synchronized (history) {
+                for (int i = 0; i < count; i++) {
+                    history.add(envelopes[i].getMessage(), envelopes[i].getSequence());
+                }
+            }
+        }
+    }
+
+    private RoomHistory historyFor(Room room) {
+        if (historySize <= 0) {
+            return null;
+        }
+        RoomHistory history = room.getHistory();
+        if (history == null) {
+            history = new RoomHistory(historySize, historyBytes);
+            room.setHistory(history);
+        }
+        return history;
+    }
+
+    /**
+     * Mirrors a delivered message to the room shared object and marks it delivered in the message log; called from the
+     * shard owning the room. Delivery latency is recorded by each connection once its send completes.
+     * 
+     * @param room source room
+     * @param envelope delivered message
+     */
+    void delivered(Room room, Envelope envelope) {
+        SharedObjectRouter soRouter = sharedObjectRouter;
+        if (soRouter != null && !envelope.isShared()) {
+            soRouter.deliver(room.getPath(), envelope.getSequence(), envelope.getMessage());
+        }
+        RoomLog roomLog = room.getRoomLog();
+        if (roomLog != null && envelope.getOffset() > 0L) {
+            roomLog.setDelivered(envelope.getOffset());
+        }
+    }
+
+    /**
+     * Returns the most recent messages delivered on a path, oldest first.
+     * 
+     * @param path room path
+     * @return recent messages, empty if the room has no history
+     */
+    public List<String> getHistory(String path) {
+        Room room = rooms.get(path);
+        RoomHistory history = room != null ? room.getHistory() : null;
+        return history != null ? history.recent(historySize) : Collections.emptyList();
+    }
+
+    /**
+     * Returns the recent messages of a path as one history frame, sequenced by the last message it covers.
+     * 
+     * @param path room path
+     * @return replay frame, null if the room has no history
+     */
+    ChatFrame getReplay(String path) {
+        Room room = rooms.get(path);
+        RoomHistory history = room != null ? room.getHistory() : null;
+        if (history == null) {
+            return null;
+        }
+        synchronized (history) {
+            List<String> messages = history.recent(historySize);
+            return messages.isEmpty() ? null : ChatFrame.of(path, history.getLastSequence(), ChatCodec.encodeHistory(messages));
+        }
+    }
+
+    /**
+     * Housekeeping run on the timer.
+     */
+    private void sweep() {
+        reclaimRooms();
+        sweepHistory();
+        sweepPeers();
+    }
+
+    /**
+     * Drops the duplicate filters of peers not heard from within the peer idle time; a restarted peer comes back under a
+     * new node id, so the old entry would otherwise stay forever.
+     */
+    private void sweepPeers() {
+        long idleBefore = System.currentTimeMillis() - PEER_IDLE;
+        peers.values().removeIf(peer -> peer.lastSeen < idleBefore);
+    }
+
+    /**
+     * Removes rooms that have been idle for longer than the room idle time, have nothing queued and no WebSocket
+     * members, along with everything cached for them.
+     */
+    private void reclaimRooms() {
+        long idleBefore = System.currentTimeMillis() - roomIdle;
+        for (Room room : rooms.values()) {
+            String path = room.getPath();
+            if (room.getLastActivity() < idleBefore && room.isIdle() && (wsListener == null || !wsListener.hasMembers(path))) {
+                // a message racing with the removal still reaches its shard through the room it was queued on
+                if (rooms.remove(path, room)) {
+                    reclaim(room);
+                }
+            }
+        }
+    }
+
+    private void reclaim(Room room) {
+        String path = room.getPath();
+        log.debug("Reclaiming idle room: {}", path);
+        room.setHistory(null);
+        room.lock();
+        try {
+            if (room.getRoomLog() != null) {
+                room.setRoomLog(null);
+                messageLog.release(path);
+            }
+        } finally {
+            room.unlock();
+        }
+        SseBridge bridge = sseBridge;
+        if (bridge != null) {
+            bridge.evict(path);
+        }
+        // a recreated room starts a new sequence
+        if (sharedObjectRouter != null) {
+            sharedObjectRouter.release(path);
+        }
+        roomsReclaimed.increment();
+    }
+
+    /**
+     * Drops history for idle rooms, then for the least recently active rooms while too many hold history.
+     */
+    private void sweepHistory() {
+        long idleBefore = System.currentTimeMillis() - historyIdle;
+        List<Room> holding = new ArrayList<>();
+        for (Room room : rooms.values()) {
+            if (room.getHistory() == null) {
+                continue;
+            }
+            if (room.getLastActivity() < idleBefore) {
+                room.setHistory(null);
+            } else {
+                holding.add(room);
+            }
+        }
+        int excess = holding.size() - historyMaxRooms;
+        if (excess > 0) {
+            holding.sort(Comparator.comparingLong(Room::getLastActivity));
+            for (int i = 0; i < excess; i++) {
+                holding.get(i).setHistory(null);
             }
-            scope = ScopeUtils.resolveScope(appScope, path);
         }
-        // get the message queue for the scope
-        return messages.computeIfAbsent(scope.getContextPath(), k -> new LinkedTransferQueue<>());
+    }
+
+    /**
+     * Returns the shard a path is pinned to, every message for a path goes through the same shard to preserve ordering.
+     * 
+     * @param path room path
+     * @param shards current shards
+     * @return shard for the path
+     */
+    private static RouterShard shardFor(String path, RouterShard[] shards) {
+        return shards[Math.floorMod(path.hashCode(), shards.length)];
     }
 
     public void setApp(Application app) {
         log.debug("Setting application: {}", app);
         this.app = app;
-        final IScope appScope = app.getScope();
-        sseService = (SSEService) appScope.getServiceHandler(SSEService.BEAN_NAME);
+        appScope = app.getScope();
+        if (sseService == null) {
+            sseService = (SSEService) appScope.getServiceHandler(SSEService.BEAN_NAME);
+        }
         if (sseService == null) {
             log.warn("SSE service was null, SSE will not be available");            
         } else {
             log.info("SSE service found in application scope: {}", appScope.getName());
         }
-        final String contextPath = appScope.getContextPath();
         this.app.addListener(new ApplicationLifecycle() {
 
+            @Override
+            public void roomStop(IScope scope) {
+                SseBridge bridge = sseBridge;
+                if (bridge != null) {
+                    bridge.evict(scope.getContextPath());
+                }
+            }
+
             @Override
             public void appStop(IScope scope) {
                 if (wsListener != null) {
                     wsListener.stop();
                 }
-                // stop routing thread
-                if (routeFuture != null && routeFuture.isAlive()) {
-                    log.info("Stopping routing thread for application: {}", app.getName());
-                    routeFuture.interrupt();
-                }
-                log.info("Application stopped, clearing message queues");
-                // clear all message queues
-                LinkedTransferQueue<String> queue = getMessageQueue(contextPath);
-                if (queue != null) {
-                    queue.clear();
-                    log.debug("Cleared message queue for path: {}", contextPath);
-                    if (messages.remove(contextPath) != null) {
-                        log.debug("Removed message queue for path: {}", contextPath);
-                    }
-                }
+                stop();
             }
 
         });
-        routeFuture = Thread.ofVirtual().start(() -> {
-            while (!Thread.currentThread().isInterrupted()) {
-                try {
-                    log.info("Router thread is running for application: {}", app.getName());
-                    // Here you can implement any routing logic if needed
-                    LinkedTransferQueue<String> queue = getMessageQueue(contextPath);
-                    String message = queue.take();
-                    if (message != null) {
-                        log.info("Routing message: {}", message);
-                        // Here you can implement the logic to route the message
-                        if (wsListener != null) {
-                            wsListener.sendToAll(contextPath, message);
-                        }
-                        if (sseService != null) {
-                            sseService.broadcastToScope(appScope, message);
+        start(appScope.getName());
+    }
+
+    /**
+     * Starts the timer and routing shards; called when the application is set.
+     * 
+     * @param name name used for the routing threads
+     */
+    void start(String name) {
+        // the log opens first, so every room routed to from here on is logged
+        if (messageLog != null) {
+            try {
+                messageLog.start();
+                // rooms routed to before the start are logged from now on
+                for (Room room : rooms.values()) {
+                    room.lock();
+                    try {
+                        if (room.getRoomLog() == null) {
+                            openLog(room);
                         }
-                    }                       
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
+                    } finally {
+                        room.unlock();
+                    }
                 }
+                recover();
+            } catch (IOException e) {
+                log.error("Message log failed to open, messages will not be persisted", e);
             }
-        });
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("chat-router-timer").factory());
+        int count = shardCount > 0 ? shardCount : Runtime.getRuntime().availableProcessors();
+        RouterShard[] started = new RouterShard[count];
+        for (int i = 0; i < count; i++) {
+            started[i] = new RouterShard(this, String.format("chat-router-%s-%d", name, i));
+            started[i].start();
+        }
+        shards = started;
+        log.info("Started {} routing shards for application: {}", count, name);
+        metrics.register(name);
+        if (sseService != null) {
+            Function<String, IScope> resolver = scopeResolver;
+            if (resolver == null) {
+                IScope scope = appScope;
+                resolver = path -> scope != null ? ScopeUtils.resolveScope(scope, path) : null;
+            }
+            SseBridge bridge = new SseBridge(sseService, resolver, appScope, String.format("chat-sse-%s", name), sseQueueCapacity);
+            bridge.start();
+            sseBridge = bridge;
+        }
+        if (clusterBus != null) {
+            try {
+                clusterBus.start(this::routeRemote);
+            } catch (Exception e) {
+                log.error("Cluster bus failed to start, routing locally only", e);
+            }
+        }
+        timer.scheduleWithFixedDelay(this::sweep, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+        // pick up anything routed before the shards were running
+        rooms.values().stream().filter(room -> !room.isEmpty()).forEach(room -> shardFor(room.getPath(), started).schedule(room));
+    }
+
+    /**
+     * Stops the routing shards and clears all message queues; called when the application stops.
+     */
+    void stop() {
+        metrics.unregister();
+        if (clusterBus != null) {
+            clusterBus.stop();
+        }
+        peers.clear();
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        // stop the routing shards
+        RouterShard[] current = shards;
+        if (current != null) {
+            log.info("Stopping {} routing shards", current.length);
+            for (RouterShard shard : current) {
+                shard.stop();
+            }
+            shards = null;
+        }
+        SseBridge bridge = sseBridge;
+        if (bridge != null) {
+            bridge.stop();
+            sseBridge = null;
+        }
+        // undelivered messages stay in the log and are queued again on the next start
+        if (messageLog != null) {
+            messageLog.stop();
+        }
+        log.info("Application stopped, clearing message queues");
+        // clear all message queues
+        rooms.values().forEach(Room::clear);
+        rooms.clear();
     }
 
     public void setWsListener(WebSocketChatDataListener wsListener) {
         this.wsListener = wsListener;
+        metrics.setListener(wsListener);
+    }
+
+    /**
+     * Sets the bus used to share room messages with peer nodes; must be called before the application is set.
+     * 
+     * @param clusterBus cluster bus
+     */
+    public void setClusterBus(ClusterBus clusterBus) {
+        this.clusterBus = clusterBus;
+    }
+
+    /**
+     * Sets the persistent message log; must be called before the application is set.
+     * 
+     * @param messageLog message log
+     */
+    public void setMessageLog(MessageLog messageLog) {
+        this.messageLog = messageLog;
+    }
+
+    public MessageLog getMessageLog() {
+        return messageLog;
+    }
+
+    public void setSharedObjectRouter(SharedObjectRouter sharedObjectRouter) {
+        this.sharedObjectRouter = sharedObjectRouter;
+    }
+
+    public SharedObjectRouter getSharedObjectRouter() {
+        return sharedObjectRouter;
+    }
+
+    public long getNodeId() {
+        return nodeId;
+    }
+
+    public long getClusterDuplicates() {
+        return clusterDuplicates.sum();
+    }
+
+    public long getClusterDropped() {
+        ClusterBus bus = clusterBus;
+        return bus != null ? bus.getDropped() : 0L;
+    }
+
+    public long getClusterRejected() {
+        ClusterBus bus = clusterBus;
+        return clusterRejected.sum() + (bus != null ? bus.getRejected() : 0L);
+    }
+
+    public ChatMetrics getMetrics() {
+        return metrics;
+    }
+
+    public int getRoomCount() {
+        return rooms.size();
+    }
+
+    /**
+     * Returns the number of queued messages for each room.
+     * 
+     * @return queue depth keyed by path
+     */
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new HashMap<>();
+        rooms.forEach((path, room) -> depths.put(path, room.size()));
+        return depths;
+    }
+
+    /**
+     * Sets the SSE service; when not set, it is looked up in the application scope.
+     * 
+     * @param sseService SSE service
+     */
+    public void setSseService(SSEService sseService) {
+        this.sseService = sseService;
+    }
+
+    /**
+     * Sets how room paths map to the scopes their SSE frames are broadcast to, e.g. for running without an application;
+     * must be called before the router starts.
+     * 
+     * @param scopeResolver returns the scope for a path, or null if there is none
+     */
+    void setScopeResolver(Function<String, IScope> scopeResolver) {
+        this.scopeResolver = scopeResolver;
+    }
+
+    /**
+     * Sets the most frames waiting for SSE delivery; must be called before the application is set.
+     * 
+     * @param sseQueueCapacity frames, the oldest are dropped beyond it
+     */
+    public void setSseQueueCapacity(int sseQueueCapacity) {
+        if (sseQueueCapacity < 1) {
+            throw new IllegalArgumentException("SSE queue capacity must be at least 1");
+        }
+        this.sseQueueCapacity = sseQueueCapacity;
+    }
+
+    public int getSseQueueCapacity() {
+        return sseQueueCapacity;
+    }
+
+    public int getSseQueueDepth() {
+        SseBridge bridge = sseBridge;
+        return bridge != null ? bridge.depth() : 0;
+    }
+
+    public long getSseDropped() {
+        SseBridge bridge = sseBridge;
+        return bridge != null ? bridge.getDropped() : 0L;
+    }
+
+    public long getSseBroadcasts() {
+        SseBridge bridge = sseBridge;
+        return bridge != null ? bridge.getBroadcasts() : 0L;
+    }
+
+    public long getSseDuplicates() {
+        SseBridge bridge = sseBridge;
+        return bridge != null ? bridge.getDuplicates() : 0L;
+    }
+
+    /**
+     * Sets the number of routing shards; must be called before the application is set.
+     * 
+     * @param shardCount shard count, zero or less for one per available core
+     */
+    public void setShardCount(int shardCount) {
+        this.shardCount = shardCount;
+    }
+
+    /**
+     * Returns whether the routing shards are running.
+     * 
+     * @return true between start and stop
+     */
+    public boolean isRunning() {
+        return shards != null;
+    }
+
+    public int getShardCount() {
+        RouterShard[] current = shards;
+        return current != null ? current.length : shardCount;
+    }
+
+    public void setRoomCapacity(int roomCapacity) {
+        if (roomCapacity < 1) {
+            throw new IllegalArgumentException("Room capacity must be at least 1");
+        }
+        this.roomCapacity = roomCapacity;
+    }
+
+    public int getRoomCapacity() {
+        return roomCapacity;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Sets how long a producer may block on a full room queue under {@link OverflowPolicy#BLOCK}.
+     * 
+     * @param blockTimeout timeout in milliseconds
+     */
+    public void setBlockTimeout(long blockTimeout) {
+        this.blockTimeout = blockTimeout;
+    }
+
+    public long getBlockTimeout() {
+        return blockTimeout;
+    }
+
+    /**
+     * Sets the paths to batch, as a comma separated list.
+     * 
+     * @param batchedPaths paths
+     */
+    public void setBatchedPaths(String batchedPaths) {
+        for (String path : batchedPaths.split(",")) {
+            if (!path.isBlank()) {
+                setBatching(path.trim(), true);
+            }
+        }
+    }
+
+    /**
+     * Sets how long a batch window stays open.
+     * 
+     * @param batchWindow window in milliseconds
+     */
+    public void setBatchWindow(long batchWindow) {
+        this.batchWindow = batchWindow;
+    }
+
+    public long getBatchWindow() {
+        return batchWindow;
+    }
+
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        this.batchSize = batchSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets how many messages are kept per room for replay to joining clients.
+     * 
+     * @param historySize messages, zero disables history
+     */
+    public void setHistorySize(int historySize) {
+        this.historySize = historySize;
+    }
+
+    public int getHistorySize() {
+        return historySize;
+    }
+
+    /**
+     * Sets the encoded size limit of each room history.
+     * 
+     * @param historyBytes bytes
+     */
+    public void setHistoryBytes(long historyBytes) {
+        this.historyBytes = historyBytes;
+    }
+
+    public long getHistoryBytes() {
+        return historyBytes;
+    }
+
+    /**
+     * Sets how long a room may go without traffic before its history is dropped.
+     * 
+     * @param historyIdle idle time in milliseconds
+     */
+    public void setHistoryIdle(long historyIdle) {
+        this.historyIdle = historyIdle;
+    }
+
+    public long getHistoryIdle() {
+        return historyIdle;
+    }
+
+    public void setHistoryMaxRooms(int historyMaxRooms) {
+        this.historyMaxRooms = historyMaxRooms;
+    }
+
+    public int getHistoryMaxRooms() {
+        return historyMaxRooms;
+    }
+
+    /**
+     * Sets how long an empty room without members or traffic is kept before it is reclaimed.
+     * 
+     * @param roomIdle idle time in milliseconds
+     */
+    public void setRoomIdle(long roomIdle) {
+        this.roomIdle = roomIdle;
+    }
+
+    public long getRoomIdle() {
+        return roomIdle;
+    }
+
+    public long getRoomsReclaimed() {
+        return roomsReclaimed.sum();
+    }
+
+    public long getDroppedOldest() {
+        return droppedOldest.sum();
+    }
+
+    public long getDroppedNewest() {
+        return droppedNewest.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getBlocked() {
+        return blocked.sum();
+    }
+
+    public long getBlockTimeouts() {
+        return blockTimeouts.sum();
+    }
+
+    public long getLogFailures() {
+        return logFailures.sum();
+    }
+
+    private static final class Peer {
+
+        final DedupWindow window = new DedupWindow();
+
+        // System.currentTimeMillis() of the last message from the peer
+        volatile long lastSeen;
+
     }
 
 }
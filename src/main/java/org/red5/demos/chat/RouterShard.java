@@ -0,0 +1,134 @@
+package org.red5.demos.chat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single routing shard; it drains the rooms assigned to it one at a time, so messages within a room stay in order
+ * while separate shards run in parallel.
+ */
+final class RouterShard implements Runnable {
+
+    private static Logger log = LoggerFactory.getLogger(RouterShard.class);
+
+    // maximum messages taken from one room before giving the next ready room a turn
+    private static final int DRAIN_LIMIT = 64;
+
+    private final Router router;
+
+    private final String name;
+
+    // rooms with pending messages, each room appears here at most once
+    private final LinkedBlockingQueue<Room> ready = new LinkedBlockingQueue<>();
+
+    private Thread thread;
+
+    RouterShard(Router router, String name) {
+        this.router = router;
+        this.name = name;
+    }
+
+    void start() {
+        thread = Thread.ofVirtual().name(name).start(this);
+    }
+
+    void stop() {
+        if (thread != null && thread.isAlive()) {
+            log.info("Stopping routing shard: {}", name);
+            thread.interrupt();
+        }
+        ready.clear();
+    }
+
+    /**
+     * Hands a room to this shard unless it is already waiting to be drained.
+     *
+     * @param room the room with pending messages
+     */
+    void schedule(Room room) {
+        if (room.markScheduled()) {
+            ready.offer(room);
+        }
+    }
+
+    @Override
+    public void run() {
+        log.info("Routing shard started: {}", name);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                drain(ready.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        log.info("Routing shard exited: {}", name);
+    }
+
+    private void drain(Room room) {
+        if (room.isBatching()) {
+            drainBatch(room);
+        } else {
+            drainEach(room);
+        }
+        room.clearScheduled();
+        // re-queue if messages remain or arrived after our last poll
+        if (!room.isEmpty()) {
+            schedule(room);
+        }
+    }
+
+    private void drainEach(Room room) {
+        for (int i = 0; i < DRAIN_LIMIT; i++) {
+            Envelope envelope = room.poll();
+            if (envelope == null) {
+                break;
+            }
+            // a failure is logged and the shard moves on, so one bad message cannot stop the rooms on this shard
+            try {
+                router.record(room, envelope);
+                router.deliver(room, envelope.getSequence(), envelope.getMessage(), envelope.getEnqueued());
+                router.delivered(room, envelope);
+            } catch (Exception e) {
+                log.warn("Exception delivering message on {}", room.getPath(), e);
+            }
+        }
+    }
+
+    /**
+     * Delivers up to a batch worth of messages as a single frame; more than one message is wrapped in a batch envelope.
+     */
+    private void drainBatch(Room room) {
+        // messages arriving from here on belong to the next window
+        room.closeWindow();
+        int limit = router.getBatchSize();
+        Envelope[] envelopes = new Envelope[limit];
+        List<String> messages = new ArrayList<>(limit);
+        int count = 0;
+        while (count < limit) {
+            Envelope envelope = room.poll();
+            if (envelope == null) {
+                break;
+            }
+            messages.add(envelope.getMessage());
+            envelopes[count++] = envelope;
+        }
+        if (count > 0) {
+            try {
+                router.record(room, envelopes, count);
+                // the batch is sequenced by its last message
+                String batch = count == 1 ? messages.get(0) : ChatCodec.encodeBatch(messages);
+                router.deliver(room, envelopes[count - 1].getSequence(), batch, envelopes[0].getEnqueued());
+                for (int i = 0; i < count; i++) {
+                    router.delivered(room, envelopes[i]);
+                }
+            } catch (Exception e) {
+                log.warn("Exception delivering batch on {}", room.getPath(), e);
+            }
+        }
+    }
+
+}
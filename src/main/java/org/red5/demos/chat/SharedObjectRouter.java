@@ -1,7 +1,15 @@
 package org.red5.demos.chat;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.red5.server.adapter.ApplicationLifecycle;
 import org.red5.server.api.IAttributeStore;
@@ -23,10 +31,35 @@ public class SharedObjectRouter {
 
     private static Logger log = LoggerFactory.getLogger(SharedObjectRouter.class);
 
+    // client handler called with the messages of a batch window
+    public static final String BATCH_HANDLER = "onChatBatch";
+
     private Application app;
 
     private WebSocketChatDataListener wsListener;
 
+    // optional message router, when set it sequences shared object updates and delivers them to the websockets
+    private volatile Router messageRouter;
+
+    // resolved scope and shared object keyed by the path given to route
+    private ConcurrentMap<String, SharedObjectEntry> cache = new ConcurrentHashMap<>();
+
+    // milliseconds without traffic after which a cached shared object is released
+    private long idleTimeout = 5 * 60 * 1000L;
+
+    // milliseconds over which messages for a shared object are collected into one send, zero sets each message on the
+    // message attribute as before; clients must handle onChatBatch to enable it
+    private long batchWindow;
+
+    // writes routed messages, flushes batch windows and releases idle shared objects
+    private volatile ScheduledExecutorService timer;
+
+    // scopes removed after going idle
+    private final LongAdder reclaimed = new LongAdder();
+
+    // routed messages skipped because their room sequence was already written
+    private final LongAdder duplicates = new LongAdder();
+
     /**
      * Routes a message on a given path to the associated shared object.
      * 
@@ -36,12 +69,101 @@ public class SharedObjectRouter {
     public void route(String path, String message) {
         log.debug("Route to Shared Object: {} with {}", path, message);
         // get the shared object
-        ISharedObject so = getSharedObject(path);
-        if (so != null) {
-            // set the message attribute
-            so.setAttribute("message", message);
+        SharedObjectEntry entry = getEntry(path);
+        if (entry == null) {
+            log.warn("Shared object was not available for path: {}", path);
         } else {
+            write(entry, message);
+        }
+    }
+
+    /**
+     * Writes a message delivered on a room to its shared object, unless its room sequence was written already; called
+     * by the message router from the shard owning the room, so sequences arrive in order. The write runs on our own
+     * timer thread, so resolving or updating the shared object never holds up or fails a routing shard.
+     * 
+     * @param path room path
+     * @param sequence room sequence of the message
+     * @param message string
+     */
+    void deliver(String path, long sequence, String message) {
+        ScheduledExecutorService current = timer;
+        if (current == null) {
+            // no application yet, nothing to resolve the shared object against
+            log.debug("Shared object router not started, skipping: {}", path);
+            return;
+        }
+        try {
+            current.execute(() -> {
+                try {
+                    write(path, sequence, message);
+                } catch (Exception e) {
+                    log.warn("Exception writing to shared object on {}", path, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.debug("Shared object router stopped, skipping: {}", path);
+        }
+    }
+
+    private void write(String path, long sequence, String message) {
+        SharedObjectEntry entry = getEntry(path);
+        if (entry == null) {
             log.warn("Shared object was not available for path: {}", path);
+        } else if (!entry.window.accept(sequence)) {
+            duplicates.increment();
+        } else {
+            write(entry, message);
+        }
+    }
+
+    private void write(SharedObjectEntry entry, String message) {
+        ScheduledExecutorService current = timer;
+        if (batchWindow > 0 && current != null) {
+            boolean first;
+            synchronized (entry) {
+                first = entry.pending.isEmpty();
+                entry.pending.add(message);
+            }
+            if (first) {
+                // first message of the window, flush once it expires
+                try {
+                    current.schedule(() -> flush(entry), batchWindow, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // stopping, eviction flushes what is pending
+                    log.debug("Batch window not scheduled, shared object router stopped");
+                }
+            }
+        } else {
+            // set the message attribute under the entry lock, which tells our listener the update is our own
+            synchronized (entry) {
+                entry.so.setAttribute("message", message);
+            }
+        }
+    }
+
+    /**
+     * Sends the messages collected for a shared object as one call to the onChatBatch handler of its clients, with the
+     * messages as arguments in their arrival order. The message attribute is left alone, so clients reading it keep
+     * working with batching off; they see no batched messages with it on.
+     * 
+     * @param entry cached entry
+     */
+    private void flush(SharedObjectEntry entry) {
+        // the update is made under the entry lock so concurrent flushes cannot reorder batches
+        synchronized (entry) {
+            if (entry.pending.isEmpty()) {
+                return;
+            }
+            List<String> batch = new ArrayList<>(entry.pending);
+            entry.pending.clear();
+            ISharedObject so = entry.so;
+            so.beginUpdate();
+            try {
+                so.sendMessage(BATCH_HANDLER, batch);
+            } finally {
+                so.endUpdate();
+            }
         }
     }
 
@@ -59,21 +181,45 @@ public class SharedObjectRouter {
             log.warn("Shared object for path: {} did not exist", path);
         }
         if (wsListener != null) {
-            wsListener.sendToAll(scope.getContextPath(), message);
+            wsListener.sendToAll(scope.getContextPath(), ChatFrame.of(message));
         }
     }
 
     /**
-     * Get the chat shared object for a given path.
+     * Get the chat shared object for a given path, from the cache when it has already been resolved.
      * 
      * @param path shared object path / name
      * @return the shared object for the path or null if its not available
      */
     private ISharedObject getSharedObject(String path) {
+        SharedObjectEntry entry = getEntry(path);
+        return entry != null ? entry.so : null;
+    }
+
+    private SharedObjectEntry getEntry(String path) {
+        // resolution may create scopes and shared objects, so only one caller per path does it; the refresh is made under
+        // the same lock the idle sweep checks it with, so a returned entry is never one being released
+        return cache.compute(path, (k, entry) -> {
+            if (entry == null) {
+                return resolve(k);
+            }
+            entry.lastUsed = System.currentTimeMillis();
+            return entry;
+        });
+    }
+
+    /**
+     * Resolves the scope and chat shared object for a path, creating either if missing.
+     * 
+     * @param path shared object path / name
+     * @return cache entry or null if the shared object is not available
+     */
+    private SharedObjectEntry resolve(String path) {
         // get the application level scope
         IScope appScope = app.getScope();
         // resolve the path given to an existing scope
         IScope scope = ScopeUtils.resolveScope(appScope, path);
+        boolean created = false;
         if (scope == null) {
             // attempt to create the missing scope for the given path
             if (!appScope.createChildScope(path)) {
@@ -81,6 +227,7 @@ public class SharedObjectRouter {
                 return null;
             }
             scope = ScopeUtils.resolveScope(appScope, path);
+            created = true;
         }
         // get the shared object
         ISharedObject so = app.getSharedObject(scope, "chat");
@@ -92,34 +239,225 @@ public class SharedObjectRouter {
             // get the newly created shared object
             so = app.getSharedObject(scope, "chat");
         }
-        // ensure the so is acquired and our listener has been added
+        // acquire the so to prevent it being removed unexpectedly, it is released once the path goes idle
+        boolean acquired = false;
         if (!so.isAcquired()) {
-            // acquire the so to prevent it being removed unexpectedly
-            so.acquire(); // TODO in a "real" world implementation, this would need to be paired with a call to release when the so is no longer needed
-            // add a listener for detecting sync on the so
-            so.addSharedObjectListener(new SOListener(this, scope, path));
+            so.acquire();
+            acquired = true;
+        }
+        // add a listener for detecting sync on the so
+        SOListener listener = new SOListener(this, scope, path);
+        SharedObjectEntry entry = new SharedObjectEntry(scope, so, listener, acquired, created);
+        listener.entry = entry;
+        so.addSharedObjectListener(listener);
+        return entry;
+    }
+
+    /**
+     * Drops a cached entry, removing our listener and releasing the shared object if we acquired it.
+     * 
+     * @param path shared object path / name
+     * @param entry cached entry
+     */
+    private void evict(String path, SharedObjectEntry entry) {
+        evict(path, entry, true);
+    }
+
+    private void evict(String path, SharedObjectEntry entry, boolean reclaim) {
+        if (cache.remove(path, entry)) {
+            dispose(path, entry, reclaim);
+        }
+    }
+
+    /**
+     * Cleans up an entry already removed from the cache, removing the scope created for it once nobody is connected.
+     * 
+     * @param path shared object path / name
+     * @param entry removed entry
+     * @param reclaim false when the scope is already being stopped by the server
+     */
+    private void dispose(String path, SharedObjectEntry entry, boolean reclaim) {
+        log.debug("Evicting shared object for path: {}", path);
+        // deliver anything still waiting on a batch window
+        flush(entry);
+        entry.so.removeSharedObjectListener(entry.listener);
+        if (entry.acquired) {
+            entry.so.release();
+        }
+        // every eviction path ends here, so a scope we created is never left behind once its entry is gone
+        IScope scope = entry.scope;
+        if (reclaim && entry.created && !scope.hasChildren() && scope.getClientConnections().isEmpty()) {
+            log.debug("Removing idle scope for path: {}", path);
+            scope.getParent().removeChildScope(scope);
+            reclaimed.increment();
+        }
+    }
+
+    /**
+     * Drops the cached entry for a path, along with the room sequences written to it.
+     * 
+     * @param path shared object path / name
+     */
+    void release(String path) {
+        SharedObjectEntry entry = cache.get(path);
+        if (entry != null) {
+            evict(path, entry);
+        }
+    }
+
+    /**
+     * Releases the shared objects of paths without traffic for longer than the idle timeout, and removes the scopes
+     * created for them once nobody is connected.
+     */
+    private void sweep() {
+        long idleBefore = System.currentTimeMillis() - idleTimeout;
+        for (String path : cache.keySet()) {
+            SharedObjectEntry[] idle = new SharedObjectEntry[1];
+            // idleness is checked again under the lock getEntry refreshes it with
+            cache.computeIfPresent(path, (k, entry) -> {
+                if (entry.lastUsed < idleBefore) {
+                    idle[0] = entry;
+                    return null;
+                }
+                return entry;
+            });
+            SharedObjectEntry entry = idle[0];
+            if (entry != null) {
+                dispose(path, entry, true);
+            }
         }
-        return so;
     }
 
     public void setApp(Application app) {
         this.app = app;
         this.app.addListener(new ApplicationLifecycle() {
 
+            @Override
+            public void roomStop(IScope scope) {
+                // the scope is going away, drop anything cached against it
+                cache.forEach((path, entry) -> {
+                    if (entry.scope == scope) {
+                        evict(path, entry, false);
+                    }
+                });
+            }
+
             @Override
             public void appStop(IScope scope) {
                 if (wsListener != null) {
                     wsListener.stop();
                 }
+                if (timer != null) {
+                    timer.shutdownNow();
+                }
+                cache.forEach((path, entry) -> evict(path, entry, false));
             }
 
         });
+        start();
+    }
+
+    /**
+     * Starts the timer for batch windows and idle sweeps, unless it is already running; called when the application
+     * is set and again when the application starts after a stop.
+     */
+    void start() {
+        if (timer != null && !timer.isShutdown()) {
+            return;
+        }
+        ScheduledExecutorService started = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("chat-so-timer").factory());
+        long interval = Math.max(1000L, idleTimeout / 2);
+        started.scheduleWithFixedDelay(this::sweep, interval, interval, TimeUnit.MILLISECONDS);
+        timer = started;
     }
 
     public void setWsListener(WebSocketChatDataListener wsListener) {
         this.wsListener = wsListener;
     }
 
+    /**
+     * Sets the message router shared object updates are routed through; the router in turn writes the messages it
+     * delivers to the shared objects here, keyed by room path, so every message reaches each side once.
+     * 
+     * @param router message router
+     */
+    public void setRouter(Router router) {
+        this.messageRouter = router;
+        router.setSharedObjectRouter(this);
+    }
+
+    public Router getRouter() {
+        return messageRouter;
+    }
+
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    /**
+     * Sets how long a path may go without traffic before its shared object is released; must be called before the
+     * application is set.
+     * 
+     * @param idleTimeout idle time in milliseconds
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public long getScopesReclaimed() {
+        return reclaimed.sum();
+    }
+
+    /**
+     * Sets the window over which messages for a shared object are collected into a single onChatBatch send. Clients
+     * that only read the message attribute, such as simpleSOChat.swf, need it left at zero.
+     * 
+     * @param batchWindow window in milliseconds, zero sets each message on the message attribute
+     */
+    public void setBatchWindow(long batchWindow) {
+        this.batchWindow = batchWindow;
+    }
+
+    public long getBatchWindow() {
+        return batchWindow;
+    }
+
+    private static final class SharedObjectEntry {
+
+        final IScope scope;
+
+        final ISharedObject so;
+
+        final SOListener listener;
+
+        // true if we acquired the shared object and so must release it
+        final boolean acquired;
+
+        // true if the scope was created for this path and may be removed once idle
+        final boolean created;
+
+        volatile long lastUsed = System.currentTimeMillis();
+
+        // messages waiting on the batch window, guarded by the entry
+        final List<String> pending = new ArrayList<>();
+
+        // room sequences written to the shared object
+        final DedupWindow window = new DedupWindow();
+
+        SharedObjectEntry(IScope scope, ISharedObject so, SOListener listener, boolean acquired, boolean created) {
+            this.scope = scope;
+            this.so = so;
+            this.listener = listener;
+            this.acquired = acquired;
+            this.created = created;
+        }
+
+    }
+
     private final class SOListener implements ISharedObjectListener {
 
         private final SharedObjectRouter router;
@@ -128,6 +466,9 @@ public class SharedObjectRouter {
 
         private final String path;
 
+        // the entry this listener was added for, still set once the entry has left the cache
+        private volatile SharedObjectEntry entry;
+
         SOListener(SharedObjectRouter router, IScope scope, String path) {
             log.debug("ctor - path: {} scope: {}", path, scope);
             this.router = router;
@@ -149,6 +490,11 @@ public class SharedObjectRouter {
 
         public void onSharedObjectDisconnect(ISharedObjectBase so) {
             log.debug("onSharedObjectDisconnect path: {}", path);
+            // the so is gone, the next route for the path resolves it again
+            SharedObjectEntry entry = router.cache.get(path);
+            if (entry != null && entry.listener == this) {
+                router.evict(path, entry);
+            }
         }
 
         public void onSharedObjectSend(ISharedObjectBase so, String method, List<?> attributes) {
@@ -165,8 +511,17 @@ public class SharedObjectRouter {
 
         public void onSharedObjectUpdate(ISharedObjectBase so, String key, Object value) {
             log.debug("onSharedObjectUpdate path: {} - {} = {}", path, key, value);
-            // route to the websockets if we have an RTMP connection as the originator, otherwise websockets will get duplicate messages
-            if (Red5.getConnectionLocal() != null) {
+            // our own writes hold the entry lock, their messages have already reached the websockets
+            SharedObjectEntry entry = this.entry;
+            if (entry != null && Thread.holdsLock(entry)) {
+                return;
+            }
+            Router messageRouter = router.messageRouter;
+            if (messageRouter != null) {
+                // sequenced at ingest and delivered once to the websocket and SSE subscribers of the room
+                messageRouter.routeShared(scope.getContextPath(), value.toString());
+            } else if (Red5.getConnectionLocal() != null) {
+                // route to the websockets if we have an RTMP connection as the originator, otherwise websockets will get duplicate messages
                 router.route(scope, value.toString());
             }
         }
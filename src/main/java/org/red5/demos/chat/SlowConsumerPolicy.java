@@ -0,0 +1,13 @@
+package org.red5.demos.chat;
+
+/**
+ * What a listener does when a connection's outbound queue is full.
+ */
+public enum SlowConsumerPolicy {
+
+    /** Close the connection. */
+    DISCONNECT,
+    /** Drop the oldest pending messages so the connection only receives the most recent ones. */
+    COALESCE;
+
+}
@@ -0,0 +1,181 @@
+package org.red5.demos.chat;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import org.red5.server.api.scope.IScope;
+import org.red5.server.net.sse.SSEService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * SSE delivery stage; routed frames are queued here and broadcast to the scope of their room from a dedicated thread,
+ * so slow SSE clients never hold up the routing shards or the WebSocket fan-out.
+ */
+final class SseBridge implements Runnable {
+
+    private static Logger log = LoggerFactory.getLogger(SseBridge.class);
+
+    private final SSEService sseService;
+
+    // maps a room path to its scope
+    private final Function<String, IScope> resolver;
+
+    // scope SSE clients of a room without its own scope are bound to, normally the application scope
+    private final IScope fallback;
+
+    private final String name;
+
+    // frames waiting for broadcast, the oldest is dropped when full
+    private final ArrayBlockingQueue<SseEvent> queue;
+
+    // room scopes keyed by path, resolved on first use
+    private final ConcurrentMap<String, IScope> scopes = new ConcurrentHashMap<>();
+
+    // duplicate filter over the room sequences broadcast on each path
+    private final ConcurrentMap<String, DedupWindow> windows = new ConcurrentHashMap<>();
+
+    // frames dropped from a full queue or for lack of any scope to broadcast on
+    private final LongAdder dropped = new LongAdder();
+
+    private final LongAdder duplicates = new LongAdder();
+
+    private final LongAdder broadcasts = new LongAdder();
+
+    private Thread thread;
+
+    SseBridge(SSEService sseService, Function<String, IScope> resolver, IScope fallback, String name, int capacity) {
+        this.sseService = sseService;
+        this.resolver = resolver;
+        this.fallback = fallback;
+        this.name = name;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    void start() {
+        thread = Thread.ofVirtual().name(name).start(this);
+    }
+
+    void stop() {
+        if (thread != null && thread.isAlive()) {
+            log.info("Stopping SSE bridge: {}", name);
+            thread.interrupt();
+        }
+        queue.clear();
+        scopes.clear();
+        windows.clear();
+    }
+
+    /**
+     * Queues a frame for the SSE subscribers of a room.
+     *
+     * @param path room path
+     * @param frame prepared message frame
+     */
+    void offer(String path, ChatFrame frame) {
+        enqueue(new SseEvent(path, null, frame));
+    }
+
+    /**
+     * Queues a frame for the SSE subscribers of a scope.
+     *
+     * @param scope target scope
+     * @param frame prepared message frame
+     */
+    void offer(IScope scope, ChatFrame frame) {
+        enqueue(new SseEvent(null, scope, frame));
+    }
+
+    private void enqueue(SseEvent event) {
+        while (!queue.offer(event)) {
+            if (queue.poll() != null) {
+                dropped.increment();
+            }
+        }
+    }
+
+    /**
+     * Forgets the scope and sequences of a room, e.g. once the room scope stops.
+     *
+     * @param path room path
+     */
+    void evict(String path) {
+        scopes.remove(path);
+        windows.remove(path);
+    }
+
+    @Override
+    public void run() {
+        log.info("SSE bridge started: {}", name);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                broadcast(queue.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        log.info("SSE bridge exited: {}", name);
+    }
+
+    private void broadcast(SseEvent event) {
+        IScope scope = event.scope != null ? event.scope : scopes.computeIfAbsent(event.path, resolver);
+        if (scope == null) {
+            // rooms made up by websocket paths have no scope, their SSE clients are bound to the application scope; the
+            // fallback is not cached, so a scope created for the room later is picked up
+            scope = fallback;
+        }
+        if (scope == null) {
+            log.debug("No scope for SSE path: {}", event.path);
+            dropped.increment();
+            return;
+        }
+        // frames routed on a room carry its sequence, anything already broadcast on the room is skipped
+        long sequence = event.frame.getSequence();
+        if (event.path != null && sequence > 0L && !windows.computeIfAbsent(event.path, k -> new DedupWindow()).accept(sequence)) {
+            duplicates.increment();
+            return;
+        }
+        try {
+            sseService.broadcastToScope(scope, event.frame.getText());
+            broadcasts.increment();
+        } catch (Exception e) {
+            log.warn("Exception broadcasting SSE event on {}", scope.getContextPath(), e);
+        }
+    }
+
+    int depth() {
+        return queue.size();
+    }
+
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    long getBroadcasts() {
+        return broadcasts.sum();
+    }
+
+    long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    private static final class SseEvent {
+
+        final String path;
+
+        final IScope scope;
+
+        final ChatFrame frame;
+
+        SseEvent(String path, IScope scope, ChatFrame frame) {
+            this.path = path;
+            this.scope = scope;
+            this.frame = frame;
+        }
+
+    }
+
+}
@@ -0,0 +1,85 @@
+package org.red5.demos.chat;
+
+/**
+ * Token bucket refilled continuously at a fixed rate up to its burst size; each message takes one token. Connection
+ * buckets also track their violations and throttle state.
+ */
+final class TokenBucket {
+
+    // a violation this long after the previous one starts a new count
+    private static final long VIOLATION_GAP = 1_000_000_000L;
+
+    // tokens added per nanosecond
+    private final double rate;
+
+    private final double burst;
+
+    private double tokens;
+
+    private long refilled = System.nanoTime();
+
+    // rejected messages in a row, with no gap longer than a second between them
+    private int violations;
+
+    private long lastViolation;
+
+    // System.nanoTime() until which everything is dropped, starts at now since nanoTime may be negative
+    private volatile long throttledUntil = System.nanoTime();
+
+    /**
+     * Creates a full bucket.
+     *
+     * @param rate messages per second
+     * @param burst most messages accepted at once
+     */
+    TokenBucket(double rate, int burst) {
+        this.rate = rate / 1_000_000_000d;
+        this.burst = Math.max(burst, 1);
+        this.tokens = this.burst;
+    }
+
+    /**
+     * Takes a token if one is available.
+     *
+     * @return true if the message may pass
+     */
+    synchronized boolean tryAcquire() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - refilled) * rate);
+        refilled = now;
+        if (tokens >= 1d) {
+            tokens -= 1d;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records a rejected message.
+     *
+     * @return violations in the current run
+     */
+    synchronized int violation() {
+        long now = System.nanoTime();
+        if (now - lastViolation > VIOLATION_GAP) {
+            violations = 0;
+        }
+        lastViolation = now;
+        return ++violations;
+    }
+
+    boolean isThrottled() {
+        return throttledUntil - System.nanoTime() > 0L;
+    }
+
+    /**
+     * Drops everything for a while and clears the violations.
+     *
+     * @param nanos throttle time in nanoseconds
+     */
+    synchronized void throttle(long nanos) {
+        violations = 0;
+        throttledUntil = System.nanoTime() + nanos;
+    }
+
+}
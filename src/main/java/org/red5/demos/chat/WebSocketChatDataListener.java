@@ -1,20 +1,27 @@
 package org.red5.demos.chat;
 
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.red5.net.websocket.WSConstants;
 import org.red5.net.websocket.WebSocketConnection;
 import org.red5.net.websocket.listener.WebSocketDataListener;
+import org.red5.net.websocket.model.MessageType;
 import org.red5.net.websocket.model.WSMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-
 /**
  * Handler / router for chat data.
  * 
@@ -24,35 +31,169 @@ public class WebSocketChatDataListener extends WebSocketDataListener {
 
     private static final Logger log = LoggerFactory.getLogger(WebSocketChatDataListener.class);
 
+    // sent back to the sender when its message is rejected by the router
+    private static final ChatFrame QUEUE_FULL_FRAME = ChatFrame.of("{\"name\":\"chat\",\"method\":\"error\",\"message\":{\"data\":\"room queue is full\"}}");
+
+    // sent once to a connection when it is throttled
+    private static final ChatFrame THROTTLED_FRAME = ChatFrame.of("{\"name\":\"chat\",\"method\":\"error\",\"message\":{\"data\":\"rate limit exceeded\"}}");
+
     {
         setProtocol("chat");
     }
 
     private Router router;
 
-    private Set<WebSocketConnection> connections = new HashSet<>();
+    // replaced by the router's metrics once a router is set
+    private ChatMetrics metrics = new ChatMetrics();
+
+    // outbound queues are indexed by their connection path, so a broadcast only touches the members of a single room
+    private ConcurrentMap<String, Set<OutboundQueue>> rooms = new ConcurrentHashMap<>();
+
+    // outbound queue for each connection
+    private ConcurrentMap<WebSocketConnection, OutboundQueue> outbound = new ConcurrentHashMap<>();
+
+    // duplicate filter over the room sequences sent on each path, kept while the room has members
+    private ConcurrentMap<String, DedupWindow> windows = new ConcurrentHashMap<>();
+
+    // drains the outbound queues, one short-lived virtual thread per busy connection
+    private volatile ExecutorService sendExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+    // maximum pending messages per connection
+    private int outboundCapacity = 256;
+
+    // milliseconds a connection may go without completing a send while it has pending messages
+    private long maxLag = 5000L;
+
+    private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DISCONNECT;
+
+    private final LongAdder evicted = new LongAdder();
+
+    private final LongAdder coalesced = new LongAdder();
+
+    private final LongAdder duplicates = new LongAdder();
+
+    // most logged messages returned for one replay request
+    private int replayLimit = 500;
+
+    // rate bucket for each connection, present only while connection limiting is on
+    private ConcurrentMap<WebSocketConnection, TokenBucket> connectionLimits = new ConcurrentHashMap<>();
+
+    // rate bucket for each room with members
+    private ConcurrentMap<String, TokenBucket> roomLimits = new ConcurrentHashMap<>();
+
+    // messages per second and burst allowed per connection, a rate of zero or less disables the limit
+    private double connectionRate = 20d;
+
+    private int connectionBurst = 40;
+
+    // messages per second and burst allowed per room, a rate of zero or less disables the limit
+    private double roomRate = 500d;
+
+    private int roomBurst = 1000;
+
+    // rejected messages in a row before the rate limit policy is applied
+    private int rateViolations = 20;
+
+    private RateLimitPolicy rateLimitPolicy = RateLimitPolicy.THROTTLE;
+
+    // milliseconds a throttled connection has all its messages dropped
+    private long throttleTime = 10000L;
+
+    // milliseconds presence changes are collected before an update is sent, zero or less disables presence
+    private long presenceWindow = 250L;
+
+    // rooms with more members than this only get member counts
+    private int presenceSummaryThreshold = 500;
+
+    // created on first use so the presence settings are applied first
+    private volatile PresenceTracker presence;
+
+    private final LongAdder rateLimited = new LongAdder();
+
+    private final LongAdder roomRateLimited = new LongAdder();
+
+    private final LongAdder throttled = new LongAdder();
+
+    private final LongAdder rateDisconnects = new LongAdder();
 
     @Override
     public void onWSConnect(WebSocketConnection conn) {
         log.info("Connect: {}", conn);
         Optional<List<String>> header = Optional.ofNullable(conn.getHeaders().get(WSConstants.WS_HEADER_PROTOCOL));
+        boolean binary = false;
         if (header.isPresent()) {
             log.debug("Protocol header exists");
             String protocol = header.get().get(0);
-            if (protocol.contains("chat")) {
+            // binary clients list chat.binary among their comma separated subprotocols
+            binary = Arrays.stream(protocol.split(",")).map(String::trim).anyMatch(BinaryEnvelope.PROTOCOL::equals);
+            if (binary) {
+                log.debug("Chat enabled with binary envelopes");
+                conn.setProtocol(this.protocol);
+            } else if (protocol.contains("chat")) {
                 log.debug("Chat enabled");
                 conn.setProtocol(protocol);
             } else {
                 log.info("Chat is not in the connections protocol list");
             }
         }
-        connections.add(conn);
+        OutboundQueue out = new OutboundQueue(conn, outboundCapacity, sendExecutor, metrics, binary);
+        outbound.put(conn, out);
+        if (connectionRate > 0d) {
+            connectionLimits.put(conn, new TokenBucket(connectionRate, connectionBurst));
+        }
+        // live frames are held back until the replay is in place
+        out.hold();
+        // add within compute so a concurrent disconnect cannot drop the room entry out from under us
+        rooms.compute(conn.getPath(), (path, members) -> {
+            if (members == null) {
+                members = ConcurrentHashMap.newKeySet();
+                // the room may have been reclaimed and restarted its sequence since it last had members
+                windows.put(path, new DedupWindow());
+            }
+            members.add(out);
+            return members;
+        });
+        // the history is read once the connection is a member, so every message is either in the replay or arrives live;
+        // the replay goes out first in one write and live frames it already covers are skipped
+        out.release(router != null ? router.getReplay(conn.getPath()) : null);
+        // the roster follows any history, so the client sees who is present before live updates arrive
+        PresenceTracker tracker = getPresenceTracker();
+        if (tracker != null) {
+            out.offer(tracker.join(conn.getPath(), conn.getId()));
+        }
     }
 
     @Override
     public void onWSDisconnect(WebSocketConnection conn) {
         log.info("Disconnect: {}", conn);
-        connections.remove(conn);
+        connectionLimits.remove(conn);
+        OutboundQueue out = outbound.remove(conn);
+        if (out != null) {
+            out.close();
+            removeMember(conn.getPath(), out);
+        }
+    }
+
+    /**
+     * Removes an outbound queue from its room and drops the room entry once its last member has left.
+     * 
+     * @param path room path
+     * @param out outbound queue
+     */
+    private void removeMember(String path, OutboundQueue out) {
+        PresenceTracker tracker = presence;
+        if (tracker != null) {
+            tracker.leave(path, out.getConnection().getId());
+        }
+        rooms.computeIfPresent(path, (k, members) -> {
+            members.remove(out);
+            if (members.isEmpty()) {
+                roomLimits.remove(path);
+                windows.remove(path);
+                return null;
+            }
+            return members;
+        });
     }
 
     @Override
@@ -64,32 +205,143 @@ public class WebSocketChatDataListener extends WebSocketDataListener {
         }
         // get the connection path for routing
         String path = message.getConnection().getPath();
-        log.debug("WebSocket connection path: {}", path);
-        // assume we have text
-        String msg = new String(message.getPayload().array()).trim();
-        log.info("onWSMessage: {}\n{}", msg, message.getConnection());
-        // do a quick hacky json check
-        if (msg.indexOf('{') != -1 && msg.indexOf(':') != -1) {
-            log.info("JSON encoded text message");
-            // channelName == roomid in most cases
-            try {
-                JsonObject obj = JsonParser.parseString(msg).getAsJsonObject();
-                log.debug("Parsed - keys: {}\ncontent: {}", obj.keySet(), obj);
-                msg = obj.toString();
-                // send to all websocket connections matching this connections path
-                //sendToAll(path, msg);
-                // route to message queue matching this connections path
-                router.route(path, msg);
-            } catch (Exception e) {
-                log.warn("Exception parsing JSON", e);
+        // rate limits are checked before the payload is even looked at
+        if (!allow(message.getConnection(), path)) {
+            return;
+        }
+        String msg;
+        if (message.getMessageType() == MessageType.BINARY) {
+            // binary frames hold a compact envelope, only its payload is routed
+            BinaryEnvelope envelope = BinaryEnvelope.decode(message.getPayload().buf());
+            if (envelope == null || !envelope.isFor(path)) {
+                log.warn("Invalid binary envelope on path: {}", path);
+                return;
             }
+            msg = envelope.getPayload().trim();
         } else {
-            log.info("Standard text message");
-            // send to all websocket connections matching this connections path
-            //sendToAll(path, msg);
-            // route to message queue matching this connections path
-            router.route(path, msg);
+            // text is decoded straight from the readable part of the payload
+            msg = ChatCodec.decodeText(message.getPayload());
+        }
+        log.trace("onWSMessage: {} path: {}\n{}", msg, path, message.getConnection());
+        if (msg.isEmpty()) {
+            return;
         }
+        // json envelopes are validated without building a tree and routed unchanged
+        if (ChatCodec.isJsonEnvelope(msg)) {
+            if (!ChatCodec.isValidJsonObject(msg)) {
+                log.warn("Invalid JSON message on path: {}", path);
+                return;
+            }
+            log.debug("JSON encoded text message");
+            long offset = ChatCodec.parseReplayFrom(msg);
+            if (offset >= 0L) {
+                replay(message.getConnection(), path, offset);
+                return;
+            }
+        } else {
+            log.debug("Standard text message");
+        }
+        // route to message queue matching this connections path
+        route(message.getConnection(), path, msg);
+    }
+
+    /**
+     * Applies the connection and room rate limits to an inbound message; a connection that keeps exceeding its limit
+     * is throttled or disconnected according to the rate limit policy.
+     * 
+     * @param conn sending connection
+     * @param path room path
+     * @return true if the message may be processed
+     */
+    private boolean allow(WebSocketConnection conn, String path) {
+        TokenBucket bucket = connectionLimits.get(conn);
+        if (bucket != null) {
+            if (bucket.isThrottled()) {
+                rateLimited.increment();
+                return false;
+            }
+            if (!bucket.tryAcquire()) {
+                rateLimited.increment();
+                if (bucket.violation() >= rateViolations) {
+                    penalize(conn, path, bucket);
+                }
+                return false;
+            }
+        }
+        return allowRoom(path);
+    }
+
+    /**
+     * Applies the room rate limit to a message for a room, whether it came from a local connection or a peer node.
+     * 
+     * @param path room path
+     * @return true if the message may be processed
+     */
+    boolean allowRoom(String path) {
+        if (roomRate > 0d && !roomLimits.computeIfAbsent(path, k -> new TokenBucket(roomRate, roomBurst)).tryAcquire()) {
+            roomRateLimited.increment();
+            return false;
+        }
+        return true;
+    }
+
+    private void penalize(WebSocketConnection conn, String path, TokenBucket bucket) {
+        OutboundQueue out = outbound.get(conn);
+        if (out == null) {
+            return;
+        }
+        if (rateLimitPolicy == RateLimitPolicy.DISCONNECT) {
+            if (disconnect(path, out)) {
+                log.info("Disconnecting connection over its rate limit: {}", conn);
+                rateDisconnects.increment();
+            }
+        } else {
+            log.info("Throttling connection over its rate limit for {} ms: {}", throttleTime, conn);
+            throttled.increment();
+            bucket.throttle(TimeUnit.MILLISECONDS.toNanos(throttleTime));
+            out.offer(THROTTLED_FRAME);
+        }
+    }
+
+    /**
+     * Routes a message and lets the sender know if the router rejected it.
+     * 
+     * @param conn sending connection
+     * @param path routable path / name
+     * @param message string
+     */
+    private void route(WebSocketConnection conn, String path, String message) {
+        if (!router.route(path, message) && router.getOverflowPolicy() == OverflowPolicy.REJECT) {
+            // queue it like any other frame so sends to the connection are never concurrent
+            OutboundQueue out = outbound.get(conn);
+            if (out != null) {
+                out.offer(QUEUE_FULL_FRAME);
+            }
+        }
+    }
+
+    /**
+     * Answers a log replay request with the messages logged after the given offset; the reply goes to the requesting
+     * connection only and is empty when the message log is off.
+     * 
+     * @param conn requesting connection
+     * @param path room path
+     * @param after offset to replay after
+     */
+    private void replay(WebSocketConnection conn, String path, long after) {
+        OutboundQueue out = outbound.get(conn);
+        if (out == null) {
+            return;
+        }
+        MessageLog messageLog = router.getMessageLog();
+        List<String> messages = Collections.emptyList();
+        long from = after;
+        if (messageLog != null && messageLog.isRunning()) {
+            // offsets removed by retention are skipped
+            from = Math.max(after, messageLog.getFirstOffset(path) - 1L);
+            messages = messageLog.read(path, from, replayLimit);
+        }
+        out.offer(ChatFrame.of(ChatCodec.encodeReplay(from + messages.size(), messages)));
     }
 
     /**
@@ -99,28 +351,346 @@ public class WebSocketChatDataListener extends WebSocketDataListener {
      * @param message string
      */
     public void sendToAll(String path, String message) {
-        for (WebSocketConnection conn : connections) {
-            if (path.equals(conn.getPath())) {
-                try {
-                    conn.send(message);
-                } catch (Exception e) {
-                    log.warn("Exception sending message", e);
+        sendToAll(path, ChatFrame.of(message));
+    }
+
+    /**
+     * Send a prepared frame to all connected WebSocket connections; the frame is shared by every recipient.
+     * 
+     * @param path routable path / name
+     * @param frame prepared message frame
+     */
+    public void sendToAll(String path, ChatFrame frame) {
+        Set<OutboundQueue> members = rooms.get(path);
+        if (members == null) {
+            log.trace("No connections for path: {}", path);
+            return;
+        }
+        // a sequenced frame reaching the room a second time, by another router or a redelivery, is skipped
+        long sequence = frame.getSequence();
+        DedupWindow window = windows.get(path);
+        if (sequence > 0L && window != null && !window.accept(sequence)) {
+            duplicates.increment();
+            return;
+        }
+        metrics.recordFanOut(members.size());
+        long maxLagNanos = TimeUnit.MILLISECONDS.toNanos(maxLag);
+        for (OutboundQueue out : members) {
+            // a connection that stopped making progress is dropped regardless of policy
+            if (out.lagNanos() > maxLagNanos) {
+                evict(path, out, "lagging");
+            } else if (!out.offer(frame)) {
+                if (slowConsumerPolicy == SlowConsumerPolicy.COALESCE) {
+                    coalesced.add(out.coalesce(frame));
+                } else {
+                    evict(path, out, "queue full");
                 }
-            } else {
-                log.trace("Path did not match for message {} != {}", path, conn.getPath());
             }
         }
     }
 
+    /**
+     * Disconnects a slow consumer; the close is done off the broadcasting thread.
+     * 
+     * @param path room path
+     * @param out outbound queue of the slow connection
+     * @param reason for logging
+     */
+    private void evict(String path, OutboundQueue out, String reason) {
+        int depth = out.depth();
+        if (disconnect(path, out)) {
+            log.info("Evicting slow consumer ({}) depth: {} {}", reason, depth, out.getConnection());
+            evicted.increment();
+        }
+    }
+
+    /**
+     * Removes a connection and closes it off the calling thread.
+     * 
+     * @param path room path
+     * @param out outbound queue of the connection
+     * @return true if this call removed the connection
+     */
+    private boolean disconnect(String path, OutboundQueue out) {
+        WebSocketConnection conn = out.getConnection();
+        if (!outbound.remove(conn, out)) {
+            return false;
+        }
+        connectionLimits.remove(conn);
+        out.close();
+        removeMember(path, out);
+        sendExecutor.execute(conn::close);
+        return true;
+    }
+
+    private PresenceTracker getPresenceTracker() {
+        PresenceTracker tracker = presence;
+        if (tracker == null && presenceWindow > 0L) {
+            synchronized (this) {
+                tracker = presence;
+                if (tracker == null) {
+                    tracker = new PresenceTracker(this::sendToAll, presenceWindow, presenceSummaryThreshold);
+                    presence = tracker;
+                }
+            }
+        }
+        return tracker;
+    }
+
+    /**
+     * Returns the ids of the connections present in a room.
+     * 
+     * @param path room path
+     * @return member ids, empty when presence is disabled
+     */
+    public Set<Long> getPresence(String path) {
+        PresenceTracker tracker = presence;
+        return tracker != null ? tracker.getMembers(path) : Collections.emptySet();
+    }
+
+    public int getPresenceCount(String path) {
+        PresenceTracker tracker = presence;
+        return tracker != null ? tracker.getCount(path) : 0;
+    }
+
+    public long getPresenceUpdates() {
+        PresenceTracker tracker = presence;
+        return tracker != null ? tracker.getUpdates() : 0L;
+    }
+
+    /**
+     * Sets how long presence changes are collected before an update is sent to a room.
+     * 
+     * @param presenceWindow window in milliseconds, zero or less disables presence
+     */
+    public void setPresenceWindow(long presenceWindow) {
+        this.presenceWindow = presenceWindow;
+    }
+
+    public long getPresenceWindow() {
+        return presenceWindow;
+    }
+
+    /**
+     * Sets the member count above which a room only gets member counts instead of rosters and deltas.
+     * 
+     * @param presenceSummaryThreshold members
+     */
+    public void setPresenceSummaryThreshold(int presenceSummaryThreshold) {
+        this.presenceSummaryThreshold = presenceSummaryThreshold;
+    }
+
+    public int getPresenceSummaryThreshold() {
+        return presenceSummaryThreshold;
+    }
+
     public void setRouter(Router router) {
         this.router = router;
         this.router.setWsListener(this);
+        this.metrics = router.getMetrics();
+    }
+
+    public int getConnectionCount() {
+        return outbound.size();
+    }
+
+    /**
+     * Returns whether any connection is on a path.
+     * 
+     * @param path room path
+     * @return true if the room has members
+     */
+    public boolean hasMembers(String path) {
+        return rooms.containsKey(path);
+    }
+
+    /**
+     * Returns the number of connections on each path.
+     * 
+     * @return connection count keyed by path
+     */
+    public Map<String, Integer> getConnectionCounts() {
+        Map<String, Integer> counts = new HashMap<>();
+        rooms.forEach((path, members) -> counts.put(path, members.size()));
+        return counts;
+    }
+
+    public void setOutboundCapacity(int outboundCapacity) {
+        if (outboundCapacity < 1) {
+            throw new IllegalArgumentException("Outbound capacity must be at least 1");
+        }
+        this.outboundCapacity = outboundCapacity;
+    }
+
+    public int getOutboundCapacity() {
+        return outboundCapacity;
+    }
+
+    /**
+     * Sets how long a connection with pending messages may go without completing a send before it is disconnected.
+     * 
+     * @param maxLag lag in milliseconds
+     */
+    public void setMaxLag(long maxLag) {
+        this.maxLag = maxLag;
+    }
+
+    public long getMaxLag() {
+        return maxLag;
+    }
+
+    public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+        this.slowConsumerPolicy = slowConsumerPolicy;
+    }
+
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    /**
+     * Sets the most logged messages returned for one replay request.
+     * 
+     * @param replayLimit messages
+     */
+    public void setReplayLimit(int replayLimit) {
+        this.replayLimit = replayLimit;
+    }
+
+    public int getReplayLimit() {
+        return replayLimit;
+    }
+
+    /**
+     * Sets the message rate allowed per connection; applies to connections made afterwards.
+     * 
+     * @param connectionRate messages per second, zero or less disables the limit
+     */
+    public void setConnectionRate(double connectionRate) {
+        this.connectionRate = connectionRate;
+    }
+
+    public double getConnectionRate() {
+        return connectionRate;
+    }
+
+    public void setConnectionBurst(int connectionBurst) {
+        this.connectionBurst = connectionBurst;
+    }
+
+    public int getConnectionBurst() {
+        return connectionBurst;
+    }
+
+    /**
+     * Sets the message rate allowed per room, shared by all of its members.
+     * 
+     * @param roomRate messages per second, zero or less disables the limit
+     */
+    public void setRoomRate(double roomRate) {
+        this.roomRate = roomRate;
+    }
+
+    public double getRoomRate() {
+        return roomRate;
+    }
+
+    public void setRoomBurst(int roomBurst) {
+        this.roomBurst = roomBurst;
+    }
+
+    public int getRoomBurst() {
+        return roomBurst;
+    }
+
+    /**
+     * Sets how many messages in a row a connection may have rejected before the rate limit policy is applied.
+     * 
+     * @param rateViolations violations
+     */
+    public void setRateViolations(int rateViolations) {
+        this.rateViolations = rateViolations;
+    }
+
+    public int getRateViolations() {
+        return rateViolations;
+    }
+
+    public void setRateLimitPolicy(RateLimitPolicy rateLimitPolicy) {
+        this.rateLimitPolicy = rateLimitPolicy;
+    }
+
+    public RateLimitPolicy getRateLimitPolicy() {
+        return rateLimitPolicy;
+    }
+
+    /**
+     * Sets how long a throttled connection has all its messages dropped.
+     * 
+     * @param throttleTime time in milliseconds
+     */
+    public void setThrottleTime(long throttleTime) {
+        this.throttleTime = throttleTime;
+    }
+
+    public long getThrottleTime() {
+        return throttleTime;
+    }
+
+    public long getRateLimited() {
+        return rateLimited.sum();
+    }
+
+    public long getRoomRateLimited() {
+        return roomRateLimited.sum();
+    }
+
+    public long getThrottled() {
+        return throttled.sum();
+    }
+
+    public long getRateDisconnects() {
+        return rateDisconnects.sum();
+    }
+
+    public long getEvicted() {
+        return evicted.sum();
+    }
+
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    /**
+     * Makes the listener usable again after {@link #stop()}, e.g. when the application starts again.
+     */
+    public void start() {
+        if (sendExecutor.isShutdown()) {
+            sendExecutor = Executors.newVirtualThreadPerTaskExecutor();
+        }
     }
 
     @Override
     public void stop() {
-        connections.forEach(wc -> wc.close());
-        connections.clear();
+        outbound.values().forEach(out -> {
+            out.close();
+            out.getConnection().close();
+        });
+        outbound.clear();
+        rooms.clear();
+        windows.clear();
+        connectionLimits.clear();
+        roomLimits.clear();
+        PresenceTracker tracker = presence;
+        if (tracker != null) {
+            tracker.stop();
+            // created again on the next connect
+            presence = null;
+        }
+        sendExecutor.shutdown();
     }
 
 }
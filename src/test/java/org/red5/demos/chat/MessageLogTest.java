@@ -0,0 +1,131 @@
+package org.red5.demos.chat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Restart recovery and retention of the message log, on its own and through the router.
+ */
+public class MessageLogTest {
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("messagelog");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    private MessageLog newLog() {
+        MessageLog messageLog = new MessageLog();
+        messageLog.setDirectory(dir.toString());
+        messageLog.setSegmentSize(1024);
+        messageLog.setFlushInterval(10L);
+        return messageLog;
+    }
+
+    @Test
+    public void testRoomsAreRecoveredOnStart() throws IOException {
+        MessageLog messageLog = newLog();
+        messageLog.start();
+        RoomLog roomLog = messageLog.getRoomLog("/chat/a");
+        for (int i = 1; i <= 10; i++) {
+            roomLog.append("msg-" + i);
+        }
+        roomLog.setDelivered(4L);
+        messageLog.stop();
+        MessageLog restarted = newLog();
+        restarted.start();
+        assertTrue(restarted.getPaths().contains("/chat/a"));
+        assertEquals(1L, restarted.getFirstOffset("/chat/a"));
+        assertEquals(10L, restarted.getLastOffset("/chat/a"));
+        assertEquals(4L, restarted.getRoomLog("/chat/a").getDelivered());
+        assertEquals(List.of("msg-9", "msg-10"), restarted.read("/chat/a", 8L, 10));
+        restarted.stop();
+    }
+
+    @Test
+    public void testReleasedRoomExpiresByFileTime() throws IOException {
+        MessageLog messageLog = newLog();
+        messageLog.setRetentionTime(0L);
+        messageLog.start();
+        messageLog.getRoomLog("/chat/gone").append("msg");
+        messageLog.getRoomLog("/chat/kept").append("msg");
+        messageLog.release("/chat/gone");
+        Path gone = dir.resolve(URLEncoder.encode("/chat/gone", StandardCharsets.UTF_8));
+        assertTrue(Files.isDirectory(gone));
+        // file times are only as fine as the file system keeps them
+        sleep(50L);
+        messageLog.retain();
+        assertFalse(Files.exists(gone));
+        // open rooms keep their active segment whatever its age
+        assertEquals(1L, messageLog.getLastOffset("/chat/kept"));
+        // the released room starts again from nothing
+        assertEquals(1L, messageLog.getRoomLog("/chat/gone").append("again"));
+        messageLog.stop();
+    }
+
+    @Test
+    public void testRouterQueuesUndeliveredMessagesAfterRestart() throws IOException {
+        MessageLog messageLog = newLog();
+        messageLog.start();
+        RoomLog roomLog = messageLog.getRoomLog("/chat/a");
+        for (int i = 1; i <= 10; i++) {
+            roomLog.append("msg-" + i);
+        }
+        // only the first six reached subscribers before the restart
+        roomLog.setDelivered(6L);
+        messageLog.stop();
+        Router router = new Router();
+        router.setMessageLog(newLog());
+        router.setHistorySize(10);
+        router.setShardCount(1);
+        router.start("test");
+        try {
+            long deadline = System.currentTimeMillis() + 5000L;
+            while (router.getMessageLog().getRoomLog("/chat/a").getDelivered() < 10L && System.currentTimeMillis() < deadline) {
+                sleep(10L);
+            }
+            assertEquals(10L, router.getMessageLog().getRoomLog("/chat/a").getDelivered());
+            // history holds what was delivered before the restart followed by the messages queued again
+            List<String> history = router.getHistory("/chat/a");
+            assertEquals("msg-10", history.get(history.size() - 1));
+            assertTrue(history.contains("msg-6"));
+            assertTrue(history.contains("msg-7"));
+            // new messages continue the log where it left off
+            assertTrue(router.route("/chat/a", "msg-11"));
+            assertEquals(11L, router.getMessageLog().getLastOffset("/chat/a"));
+        } finally {
+            router.stop();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
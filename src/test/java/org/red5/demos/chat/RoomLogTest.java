@@ -0,0 +1,199 @@
+package org.red5.demos.chat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Recovery, checkpoint and retention behaviour of a single room log.
+ */
+public class RoomLogTest {
+
+    // small segments so a few messages roll over
+    private static final int SEGMENT_SIZE = 256;
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("roomlog");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testOffsetsAndMessagesSurviveReopen() throws IOException {
+        RoomLog roomLog = RoomLog.open("/chat/a", dir, SEGMENT_SIZE);
+        for (int i = 1; i <= 50; i++) {
+            assertEquals(i, roomLog.append("msg-" + i));
+        }
+        assertTrue("expected several segments", segmentCount() > 1);
+        roomLog.setDelivered(30L);
+        roomLog.close();
+        RoomLog reopened = RoomLog.open("/chat/a", dir, SEGMENT_SIZE);
+        assertEquals(1L, reopened.getFirstOffset());
+        assertEquals(51L, reopened.getNextOffset());
+        assertEquals(30L, reopened.getDelivered());
+        List<String> undelivered = reopened.read(reopened.getDelivered(), 100);
+        assertEquals(20, undelivered.size());
+        assertEquals("msg-31", undelivered.get(0));
+        assertEquals("msg-50", undelivered.get(19));
+        // appends continue from the recovered offsets
+        assertEquals(51L, reopened.append("msg-51"));
+        reopened.close();
+    }
+
+    @Test
+    public void testUnflushedRecordsAreRecovered() throws IOException {
+        RoomLog roomLog = RoomLog.open("/chat/a", dir, SEGMENT_SIZE);
+        roomLog.append("first");
+        roomLog.append("second");
+        // the records are in the mapped file even before a force, only the checkpoint was never saved
+        RoomLog reopened = RoomLog.open("/chat/a", dir, SEGMENT_SIZE);
+        assertEquals(3L, reopened.getNextOffset());
+        assertEquals(0L, reopened.getDelivered());
+        assertEquals(List.of("first", "second"), reopened.read(0L, 10));
+        roomLog.close();
+        reopened.close();
+    }
+
+    @Test
+    public void testCheckpointIsReplacedWithoutTempFile() throws IOException {
+        RoomLog roomLog = RoomLog.open("/chat/a", dir, SEGMENT_SIZE);
+        roomLog.append("msg");
+        roomLog.setDelivered(1L);
+        roomLog.flush();
+        assertEquals("1", Files.readString(dir.resolve("checkpoint"), StandardCharsets.UTF_8));
+        assertFalse(Files.exists(dir.resolve("checkpoint.tmp")));
+        roomLog.close();
+    }
+
+    @Test
+    public void testInvalidCheckpointReplaysWholeLog() throws IOException {
+        RoomLog roomLog = RoomLog.open("/chat/a", dir, SEGMENT_SIZE);
+        roomLog.append("msg-1");
+        roomLog.append("msg-2");
+        roomLog.close();
+        // what a torn in-place write used to leave behind
+        Files.writeString(dir.resolve("checkpoint"), "", StandardCharsets.UTF_8);
+        RoomLog reopened = RoomLog.open("/chat/a", dir, SEGMENT_SIZE);
+        assertEquals(0L, reopened.getDelivered());
+        assertEquals(2, reopened.read(reopened.getDelivered(), 10).size());
+        reopened.close();
+    }
+
+    @Test
+    public void testLeftoverTempCheckpointIsIgnored() throws IOException {
+        RoomLog roomLog = RoomLog.open("/chat/a", dir, SEGMENT_SIZE);
+        roomLog.append("msg-1");
+        roomLog.append("msg-2");
+        roomLog.setDelivered(1L);
+        roomLog.close();
+        // a crash between writing the temp file and moving it
+        Files.writeString(dir.resolve("checkpoint.tmp"), "2", StandardCharsets.UTF_8);
+        RoomLog reopened = RoomLog.open("/chat/a", dir, SEGMENT_SIZE);
+        assertEquals(1L, reopened.getDelivered());
+        reopened.close();
+    }
+
+    @Test
+    public void testRetentionBytesCountsWrittenRecords() throws IOException {
+        RoomLog roomLog = RoomLog.open("/chat/a", dir, SEGMENT_SIZE);
+        int i = 0;
+        while (segmentCount() < 2) {
+            roomLog.append("msg-" + i++);
+        }
+        // a full segment and a nearly empty one are under a limit smaller than their mapped sizes together
+        roomLog.retain(0L, SEGMENT_SIZE + SEGMENT_SIZE / 2);
+        assertEquals(2, segmentCount());
+        assertEquals(1L, roomLog.getFirstOffset());
+        for (; i < 100; i++) {
+            roomLog.append("msg-" + i);
+        }
+        int before = segmentCount();
+        roomLog.retain(0L, SEGMENT_SIZE * 2L);
+        int after = segmentCount();
+        assertTrue("expected old segments to be deleted", after < before);
+        assertTrue("expected the newest segments to be kept", after >= 2);
+        assertTrue(roomLog.getFirstOffset() > 1L);
+        // reads start at the oldest retained message
+        List<String> messages = roomLog.read(0L, 1000);
+        assertEquals(roomLog.getNextOffset() - roomLog.getFirstOffset(), messages.size());
+        assertEquals("msg-99", messages.get(messages.size() - 1));
+        roomLog.close();
+    }
+
+    @Test
+    public void testRetentionTimeKeepsActiveSegment() throws IOException {
+        RoomLog roomLog = RoomLog.open("/chat/a", dir, SEGMENT_SIZE);
+        for (int i = 0; i < 100; i++) {
+            roomLog.append("msg-" + i);
+        }
+        long next = roomLog.getNextOffset();
+        // everything is older than a cutoff in the future
+        roomLog.retain(System.currentTimeMillis() + 1000L, Long.MAX_VALUE);
+        assertEquals(1, segmentCount());
+        assertEquals(next, roomLog.getNextOffset());
+        assertEquals(next, roomLog.append("after"));
+        roomLog.close();
+    }
+
+    @Test
+    public void testRollUsesPreparedSpare() throws IOException {
+        RoomLog roomLog = RoomLog.open("/chat/a", dir, SEGMENT_SIZE);
+        long offset = 0L;
+        while (!Files.exists(dir.resolve(LogSegment.SPARE))) {
+            offset = roomLog.append("msg-" + (offset + 1));
+            roomLog.prepare();
+        }
+        while (Files.exists(dir.resolve(LogSegment.SPARE))) {
+            offset = roomLog.append("msg-" + (offset + 1));
+        }
+        assertEquals(2, segmentCount());
+        assertEquals(offset + 1L, roomLog.getNextOffset());
+        assertEquals(List.of("msg-" + offset), roomLog.read(offset - 1L, 10));
+        roomLog.close();
+        RoomLog reopened = RoomLog.open("/chat/a", dir, SEGMENT_SIZE);
+        assertEquals(offset + 1L, reopened.getNextOffset());
+        reopened.close();
+    }
+
+    @Test
+    public void testOversizedAndClosedAppendsAreRefused() throws IOException {
+        RoomLog roomLog = RoomLog.open("/chat/a", dir, SEGMENT_SIZE);
+        assertEquals(0L, roomLog.append("x".repeat(SEGMENT_SIZE)));
+        assertEquals(1L, roomLog.getNextOffset());
+        roomLog.close();
+        try {
+            roomLog.append("late");
+            throw new AssertionError("append on a closed log should fail");
+        } catch (IOException expected) {
+            // refused
+        }
+        assertTrue(roomLog.read(0L, 10).isEmpty());
+    }
+
+    private int segmentCount() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return (int) files.filter(file -> file.getFileName().toString().endsWith(".log")).count();
+        }
+    }
+
+}